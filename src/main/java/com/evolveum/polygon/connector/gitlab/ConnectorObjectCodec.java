@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Compact binary form of connector objects, as produced by the
+ * convert*ToConnectorObject methods. Only value types used by this connector
+ * are supported, other values are stored as strings.
+ */
+final class ConnectorObjectCodec {
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+
+	private ConnectorObjectCodec() {
+	}
+
+	static byte[] encode(ConnectorObject object) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeString(out, object.getObjectClass().getObjectClassValue());
+			writeString(out, object.getUid().getUidValue());
+			writeString(out, object.getName().getNameValue());
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			for (Attribute attribute : object.getAttributes()) {
+				if (!Uid.NAME.equals(attribute.getName()) && !Name.NAME.equals(attribute.getName())) {
+					attributes.add(attribute);
+				}
+			}
+			out.writeInt(attributes.size());
+			for (Attribute attribute : attributes) {
+				writeString(out, attribute.getName());
+				List<Object> values = attribute.getValue();
+				if (values == null) {
+					out.writeInt(0);
+					continue;
+				}
+				out.writeInt(values.size());
+				for (Object value : values) {
+					writeValue(out, value);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw IOException
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static ConnectorObject decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(new ObjectClass(readString(in)));
+		builder.setUid(readString(in));
+		builder.setName(readString(in));
+		int attributeCount = in.readInt();
+		for (int i = 0; i < attributeCount; i++) {
+			String name = readString(in);
+			int valueCount = in.readInt();
+			List<Object> values = new ArrayList<Object>(valueCount);
+			for (int j = 0; j < valueCount; j++) {
+				values.add(readValue(in));
+			}
+			builder.addAttribute(name, values);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Strings are stored as length and UTF-8 bytes. Unlike writeUTF, this is
+	 * not limited to 64 KB (e.g. long bio or description).
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TYPE_NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(TYPE_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(TYPE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(TYPE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else {
+			out.writeByte(TYPE_STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STRING:
+			return readString(in);
+		case TYPE_INTEGER:
+			return in.readInt();
+		case TYPE_LONG:
+			return in.readLong();
+		case TYPE_BOOLEAN:
+			return in.readBoolean();
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}
+}
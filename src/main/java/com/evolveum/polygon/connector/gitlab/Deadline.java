@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+/**
+ * Time budget of a single connector operation. An operation may issue many
+ * GitLab requests (e.g. group member synchronization), the deadline is shared
+ * by all of them.
+ *
+ * Socket timeouts derived from the deadline limit each connect and each read
+ * only, a response that keeps trickling in is not stopped by them. Reads are
+ * therefore checked against the deadline between chunks of the response body
+ * and between pages. Writes done through GitlabAPI are limited per socket
+ * operation only.
+ */
+final class Deadline {
+
+	static final Deadline NONE = new Deadline(0);
+
+	// System.nanoTime() based, 0 means no deadline
+	private final long expiresAt;
+
+	private Deadline(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Creates deadline that expires after given number of milliseconds.
+	 * Zero or negative timeout means no deadline at all.
+	 */
+	static Deadline after(long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			return NONE;
+		}
+		// never produce 0, it is reserved for "no deadline"
+		return new Deadline((System.nanoTime() + timeoutMillis * 1000000L) | 1L);
+	}
+
+	boolean isUnlimited() {
+		return expiresAt == 0;
+	}
+
+	/**
+	 * Remaining time in milliseconds, Long.MAX_VALUE for unlimited deadline.
+	 */
+	long remainingMillis() {
+		if (isUnlimited()) {
+			return Long.MAX_VALUE;
+		}
+		return (expiresAt - System.nanoTime()) / 1000000L;
+	}
+
+	/**
+	 * Returns socket timeout that does not exceed the remaining budget.
+	 * Zero (infinite) configured timeout is limited by the deadline as well.
+	 * The timeout applies to a single socket operation, not to the whole
+	 * request.
+	 */
+	int limitTimeout(int configuredTimeoutMillis, String activity) {
+		if (isUnlimited()) {
+			return configuredTimeoutMillis;
+		}
+		long remaining = check(activity);
+		if (configuredTimeoutMillis > 0 && configuredTimeoutMillis < remaining) {
+			return configuredTimeoutMillis;
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Throws OperationTimeoutException if the budget is spent, returns
+	 * remaining time otherwise.
+	 */
+	long check(String activity) {
+		long remaining = remainingMillis();
+		if (remaining <= 0) {
+			throw new OperationTimeoutException("Operation time budget exhausted before " + activity);
+		}
+		return remaining;
+	}
+}
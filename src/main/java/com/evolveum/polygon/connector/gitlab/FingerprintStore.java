@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+/**
+ * Fingerprints (attribute hashes) of all objects of one object class as seen
+ * by the last complete scan, keyed by uid. Comparing a new scan with the
+ * fingerprints tells which objects were added, changed or deleted, without
+ * keeping the objects themselves.
+ *
+ * A scan done by synchronization is only staged: it becomes the baseline
+ * when a later synchronization comes with its generation as the token, i.e.
+ * after the framework stored the token of the reported changes. Until then
+ * the previous baseline is kept, so the changes are reported again if the
+ * token was lost.
+ */
+final class FingerprintStore {
+
+	private static final Log LOG = Log.getLog(FingerprintStore.class);
+
+	private static final int FILE_MAGIC = 0x474c4631;
+
+	private static final SharedObjects<FingerprintStore> STORES = new SharedObjects<FingerprintStore>();
+
+	private final String key;
+	private final File file;
+	private final File pendingFile;
+	private Map<String, Long> fingerprints;
+	// number of completed scans, 0 means that there is no baseline yet
+	private int generation;
+	// staged scan, not confirmed by a sync token yet
+	private Map<String, Long> pendingFingerprints;
+	private int pendingGeneration;
+
+	private FingerprintStore(String key, File file) {
+		this.key = key;
+		this.file = file;
+		this.pendingFile = new File(file.getPath() + ".pending");
+	}
+
+	/**
+	 * Returns fingerprints of the object class in given directory. Stores are
+	 * shared by all connector instances that use the same directory and state
+	 * key (see {@link GitlabConfiguration#stateKey()}). The store must be
+	 * released when the instance is disposed.
+	 */
+	static FingerprintStore get(File directory, String stateKey, String objectClassName) {
+		final File file = new File(directory, "fingerprints-" + stateKey + "-" + objectClassName + ".bin");
+		final String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			throw new ConnectorIOException(e.getMessage(), e);
+		}
+		return STORES.acquire(key, new SharedObjects.Factory<FingerprintStore>() {
+			@Override
+			public FingerprintStore create() {
+				return new FingerprintStore(key, file);
+			}
+		});
+	}
+
+	void release() {
+		STORES.release(key);
+	}
+
+	/**
+	 * Generation of the baseline, staged scans are not counted.
+	 */
+	synchronized int getGeneration() {
+		load();
+		return generation;
+	}
+
+	/**
+	 * Starts comparison of a new complete scan with the stored fingerprints.
+	 */
+	synchronized Comparison compare() {
+		load();
+		return new Comparison(new HashMap<String, Long>(fingerprints), generation + 1);
+	}
+
+	/**
+	 * Starts comparison of a new complete scan for synchronization from
+	 * given token. The token of a staged scan confirms it. The baseline is
+	 * used if the token is its generation. Any other token (none, unknown or
+	 * older one) starts a full resynchronization: all objects are reported
+	 * as changed and no deletions are reported.
+	 */
+	synchronized Comparison compare(Integer token) {
+		load();
+		if (token != null && pendingFingerprints != null && token == pendingGeneration) {
+			confirm();
+		}
+		if (token != null && token == generation && generation > 0) {
+			return new Comparison(new HashMap<String, Long>(fingerprints), generation + 1);
+		}
+		LOG.ok("Sync token {0} does not match fingerprints {1} (generation {2}), resynchronizing all objects",
+				token, file, generation);
+		return new Comparison(new HashMap<String, Long>(), generation + 1);
+	}
+
+	final class Comparison {
+
+		private final Map<String, Long> previous;
+		private final Map<String, Long> current = new HashMap<String, Long>();
+		private final int generation;
+
+		private Comparison(Map<String, Long> previous, int generation) {
+			this.previous = previous;
+			this.generation = generation;
+		}
+
+		/**
+		 * Generation of the fingerprints after {@link #commit()} or after
+		 * {@link #stage()} is confirmed.
+		 */
+		int getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Records the object, returns true if it was added or changed since
+		 * the previous scan.
+		 */
+		boolean isChanged(ConnectorObject object) {
+			String uid = object.getUid().getUidValue();
+			long fingerprint = fingerprint(object);
+			current.put(uid, fingerprint);
+			Long previousFingerprint = previous.get(uid);
+			return previousFingerprint == null || previousFingerprint != fingerprint;
+		}
+
+		/**
+		 * Uids of objects that were not seen in this scan.
+		 */
+		List<String> getDeletedUids() {
+			List<String> deleted = new ArrayList<String>();
+			for (String uid : previous.keySet()) {
+				if (!current.containsKey(uid)) {
+					deleted.add(uid);
+				}
+			}
+			Collections.sort(deleted);
+			return deleted;
+		}
+
+		/**
+		 * Replaces the stored fingerprints by the ones of this scan. Must be
+		 * called only after a complete scan.
+		 */
+		void commit() {
+			replace(current, generation);
+		}
+
+		/**
+		 * Keeps the fingerprints of this scan until a synchronization with
+		 * its generation as the token confirms them. Must be called only
+		 * after a complete scan.
+		 */
+		void stage() {
+			FingerprintStore.this.stage(current, generation);
+		}
+	}
+
+	/**
+	 * Hash of all attribute values. Neither order of attributes nor order of
+	 * values of multi-valued attributes matters.
+	 */
+	static long fingerprint(ConnectorObject object) {
+		Map<String, List<String>> attributes = new TreeMap<String, List<String>>();
+		for (Attribute attribute : object.getAttributes()) {
+			List<String> values = new ArrayList<String>();
+			if (attribute.getValue() != null) {
+				for (Object value : attribute.getValue()) {
+					values.add(value == null ? "" : value.getClass().getSimpleName() + ":" + value);
+				}
+			}
+			Collections.sort(values);
+			attributes.put(attribute.getName(), values);
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+				update(digest, attribute.getKey());
+				digest.update((byte) attribute.getValue().size());
+				for (String value : attribute.getValue()) {
+					update(digest, value);
+				}
+			}
+			byte[] hash = digest.digest();
+			long fingerprint = 0;
+			for (int i = 0; i < 8; i++) {
+				fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+			}
+			return fingerprint;
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is always supported
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			digest.update((byte) (bytes.length >>> 24));
+			digest.update((byte) (bytes.length >>> 16));
+			digest.update((byte) (bytes.length >>> 8));
+			digest.update((byte) bytes.length);
+			digest.update(bytes);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private synchronized void replace(Map<String, Long> newFingerprints, int newGeneration) {
+		write(file, newFingerprints, newGeneration);
+		fingerprints = newFingerprints;
+		generation = newGeneration;
+		if (pendingFingerprints != null && pendingGeneration <= newGeneration) {
+			pendingFile.delete();
+			pendingFingerprints = null;
+		}
+	}
+
+	private synchronized void stage(Map<String, Long> newFingerprints, int newGeneration) {
+		load();
+		write(pendingFile, newFingerprints, newGeneration);
+		pendingFingerprints = newFingerprints;
+		pendingGeneration = newGeneration;
+	}
+
+	private void confirm() {
+		write(file, pendingFingerprints, pendingGeneration);
+		fingerprints = pendingFingerprints;
+		generation = pendingGeneration;
+		pendingFile.delete();
+		pendingFingerprints = null;
+	}
+
+	private static void write(File target, Map<String, Long> newFingerprints, int newGeneration) {
+		File tmpFile = new File(target.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(newGeneration);
+				out.writeInt(newFingerprints.size());
+				for (Map.Entry<String, Long> entry : newFingerprints.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(target)) {
+				// rename does not replace existing file on some platforms
+				target.delete();
+				if (!tmpFile.renameTo(target)) {
+					throw new IOException("Cannot rename " + tmpFile + " to " + target);
+				}
+			}
+		} catch (IOException e) {
+			throw new ConnectorIOException("Cannot write fingerprints " + target + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void load() {
+		if (fingerprints != null) {
+			return;
+		}
+		fingerprints = new HashMap<String, Long>();
+		generation = 0;
+		pendingFingerprints = null;
+		if (file.exists()) {
+			try {
+				Map<String, Long> stored = new HashMap<String, Long>();
+				generation = read(file, stored);
+				fingerprints = stored;
+			} catch (IOException e) {
+				LOG.warn(e, "Cannot read fingerprints {0}, all objects will be reported as changed", file);
+				generation = 0;
+			}
+		}
+		if (pendingFile.exists()) {
+			try {
+				Map<String, Long> stored = new HashMap<String, Long>();
+				int storedGeneration = read(pendingFile, stored);
+				if (storedGeneration > generation) {
+					pendingFingerprints = stored;
+					pendingGeneration = storedGeneration;
+				}
+			} catch (IOException e) {
+				LOG.warn(e, "Cannot read staged fingerprints {0}, they are ignored", pendingFile);
+			}
+		}
+	}
+
+	private static int read(File source, Map<String, Long> target) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				throw new IOException("Not a fingerprint file");
+			}
+			int storedGeneration = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				target.put(in.readUTF(), in.readLong());
+			}
+			return storedGeneration;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -15,7 +15,15 @@
  */
 
 package com.evolveum.polygon.connector.gitlab;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
@@ -24,7 +32,25 @@ public class GitlabConfiguration extends AbstractConfiguration {
 
     private String hostUrl;
     private String apiToken;
+    private GuardedString[] additionalApiTokens;
     private boolean ignoreCertificateErrors = false;
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+    private int operationTimeout = 0;
+    private int pageSize = 100;
+    private int prefetchDepth = 2;
+    private String stateDirectory;
+    private boolean mirrorEnabled = false;
+    private int mirrorMaxAge = 3600;
+    private int conditionalCacheSize = 1000;
+    private String[] projectGroups;
+    private boolean includeSubgroupProjects = true;
+    private boolean excludeArchivedProjects = false;
+    private int membershipGraphMaxAge = 0;
+    private boolean fingerprintSync = false;
+    private String[] readHostUrls;
+    private int readYourWritesWindow = 60;
+    private boolean keysetPagination = false;
 
     @Override
     public void validate() {
@@ -34,6 +60,30 @@ public class GitlabConfiguration extends AbstractConfiguration {
     	if (StringUtil.isBlank(apiToken)) {
     		throw new ConfigurationException("token.blank");
     	}
+    	if (connectTimeout < 0 || readTimeout < 0 || operationTimeout < 0) {
+    		throw new ConfigurationException("timeout.negative");
+    	}
+    	if (pageSize < 1 || pageSize > 100) {
+    		throw new ConfigurationException("pageSize.range");
+    	}
+    	if (prefetchDepth < 0) {
+    		throw new ConfigurationException("prefetchDepth.negative");
+    	}
+    	if ((mirrorEnabled || fingerprintSync) && StringUtil.isBlank(stateDirectory)) {
+    		throw new ConfigurationException("stateDirectory.blank");
+    	}
+    	if (mirrorMaxAge < 0) {
+    		throw new ConfigurationException("mirrorMaxAge.negative");
+    	}
+    	if (conditionalCacheSize < 0) {
+    		throw new ConfigurationException("conditionalCacheSize.negative");
+    	}
+    	if (readYourWritesWindow < 0) {
+    		throw new ConfigurationException("readYourWritesWindow.negative");
+    	}
+    	if (membershipGraphMaxAge < 0) {
+    		throw new ConfigurationException("membershipGraphMaxAge.negative");
+    	}
     }
 
     @ConfigurationProperty(displayMessageKey = "gitlab.config.hostUrl",
@@ -56,6 +106,16 @@ public class GitlabConfiguration extends AbstractConfiguration {
         this.apiToken = apiToken;
     }
 
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.additionalApiTokens",
+            helpMessageKey = "gitlab.config.additionalApiTokens.help", confidential = true)
+    public GuardedString[] getAdditionalApiTokens() {
+        return additionalApiTokens;
+    }
+
+    public void setAdditionalApiTokens(GuardedString[] additionalApiTokens) {
+        this.additionalApiTokens = additionalApiTokens;
+    }
+
     @ConfigurationProperty(displayMessageKey = "gitlab.config.ignoreCertificateErrors",
             helpMessageKey = "gitlab.config.ignoreCertificateErrors.help")
     public boolean getIgnoreCertificateErrors() {
@@ -65,4 +125,252 @@ public class GitlabConfiguration extends AbstractConfiguration {
     public void setIgnoreCertificateErrors(boolean ignoreCertificateErrors) {
         this.ignoreCertificateErrors = ignoreCertificateErrors;
     }
-}
\ No newline at end of file
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.connectTimeout",
+            helpMessageKey = "gitlab.config.connectTimeout.help")
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.readTimeout",
+            helpMessageKey = "gitlab.config.readTimeout.help")
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.operationTimeout",
+            helpMessageKey = "gitlab.config.operationTimeout.help")
+    public int getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    public void setOperationTimeout(int operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.pageSize",
+            helpMessageKey = "gitlab.config.pageSize.help")
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.prefetchDepth",
+            helpMessageKey = "gitlab.config.prefetchDepth.help")
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.stateDirectory",
+            helpMessageKey = "gitlab.config.stateDirectory.help")
+    public String getStateDirectory() {
+        return stateDirectory;
+    }
+
+    public void setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.mirrorEnabled",
+            helpMessageKey = "gitlab.config.mirrorEnabled.help")
+    public boolean getMirrorEnabled() {
+        return mirrorEnabled;
+    }
+
+    public void setMirrorEnabled(boolean mirrorEnabled) {
+        this.mirrorEnabled = mirrorEnabled;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.mirrorMaxAge",
+            helpMessageKey = "gitlab.config.mirrorMaxAge.help")
+    public int getMirrorMaxAge() {
+        return mirrorMaxAge;
+    }
+
+    public void setMirrorMaxAge(int mirrorMaxAge) {
+        this.mirrorMaxAge = mirrorMaxAge;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.conditionalCacheSize",
+            helpMessageKey = "gitlab.config.conditionalCacheSize.help")
+    public int getConditionalCacheSize() {
+        return conditionalCacheSize;
+    }
+
+    public void setConditionalCacheSize(int conditionalCacheSize) {
+        this.conditionalCacheSize = conditionalCacheSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.projectGroups",
+            helpMessageKey = "gitlab.config.projectGroups.help")
+    public String[] getProjectGroups() {
+        return projectGroups;
+    }
+
+    public void setProjectGroups(String[] projectGroups) {
+        this.projectGroups = projectGroups;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.includeSubgroupProjects",
+            helpMessageKey = "gitlab.config.includeSubgroupProjects.help")
+    public boolean getIncludeSubgroupProjects() {
+        return includeSubgroupProjects;
+    }
+
+    public void setIncludeSubgroupProjects(boolean includeSubgroupProjects) {
+        this.includeSubgroupProjects = includeSubgroupProjects;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.excludeArchivedProjects",
+            helpMessageKey = "gitlab.config.excludeArchivedProjects.help")
+    public boolean getExcludeArchivedProjects() {
+        return excludeArchivedProjects;
+    }
+
+    public void setExcludeArchivedProjects(boolean excludeArchivedProjects) {
+        this.excludeArchivedProjects = excludeArchivedProjects;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.membershipGraphMaxAge",
+            helpMessageKey = "gitlab.config.membershipGraphMaxAge.help")
+    public int getMembershipGraphMaxAge() {
+        return membershipGraphMaxAge;
+    }
+
+    public void setMembershipGraphMaxAge(int membershipGraphMaxAge) {
+        this.membershipGraphMaxAge = membershipGraphMaxAge;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.fingerprintSync",
+            helpMessageKey = "gitlab.config.fingerprintSync.help")
+    public boolean getFingerprintSync() {
+        return fingerprintSync;
+    }
+
+    public void setFingerprintSync(boolean fingerprintSync) {
+        this.fingerprintSync = fingerprintSync;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.readHostUrls",
+            helpMessageKey = "gitlab.config.readHostUrls.help")
+    public String[] getReadHostUrls() {
+        return readHostUrls;
+    }
+
+    public void setReadHostUrls(String[] readHostUrls) {
+        this.readHostUrls = readHostUrls;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.readYourWritesWindow",
+            helpMessageKey = "gitlab.config.readYourWritesWindow.help")
+    public int getReadYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    public void setReadYourWritesWindow(int readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "gitlab.config.keysetPagination",
+            helpMessageKey = "gitlab.config.keysetPagination.help")
+    public boolean getKeysetPagination() {
+        return keysetPagination;
+    }
+
+    public void setKeysetPagination(boolean keysetPagination) {
+        this.keysetPagination = keysetPagination;
+    }
+
+    /**
+     * All API tokens, the main one first. Tokens stay guarded, they are
+     * opened only when a request is built.
+     */
+    List<GuardedString> guardedApiTokens() {
+        List<GuardedString> tokens = new ArrayList<GuardedString>();
+        tokens.add(new GuardedString(apiToken == null ? new char[0] : apiToken.toCharArray()));
+        if (additionalApiTokens != null) {
+            for (GuardedString additionalApiToken : additionalApiTokens) {
+                if (additionalApiToken != null && !isEmpty(additionalApiToken)) {
+                    tokens.add(additionalApiToken);
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isEmpty(GuardedString value) {
+        final boolean[] empty = new boolean[1];
+        value.access(new GuardedString.Accessor() {
+            @Override
+            public void access(char[] chars) {
+                empty[0] = chars.length == 0;
+            }
+        });
+        return empty[0];
+    }
+
+    /**
+     * Identifies configurations that may share connection related state
+     * (caches etc.) across connector instances. The key is a digest, it is
+     * kept in static maps and must not reveal the tokens.
+     */
+    String sharedStateKey() {
+        final StringBuilder tokens = new StringBuilder();
+        for (GuardedString token : guardedApiTokens()) {
+            token.access(new GuardedString.Accessor() {
+                @Override
+                public void access(char[] chars) {
+                    tokens.append(digest(new String(chars))).append(',');
+                }
+            });
+        }
+        return digest(hostUrl + "|" + tokens + "|" + ignoreCertificateErrors + "|" + connectTimeout + "|" + readTimeout
+                + "|" + conditionalCacheSize + "|" + (readHostUrls == null ? null : Arrays.asList(readHostUrls)) + "|" + readYourWritesWindow);
+    }
+
+    /**
+     * Identifies persistent state (mirror, fingerprints) in the state
+     * directory, which may be shared by several resources. The state depends
+     * on the GitLab instance, on what the API token can see and on the
+     * project scope, not on timeouts or read endpoints.
+     */
+    String stateKey() {
+        return digest(hostUrl + "|" + apiToken + "|" + (projectGroups == null ? null : Arrays.asList(projectGroups))
+                + "|" + includeSubgroupProjects + "|" + excludeArchivedProjects).substring(0, 16);
+    }
+
+    /**
+     * Hex encoded SHA-256 of the value.
+     */
+    static String digest(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(value.getBytes("UTF-8"))) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always supported
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
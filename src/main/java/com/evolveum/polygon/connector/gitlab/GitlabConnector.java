@@ -16,14 +16,24 @@
 
 package com.evolveum.polygon.connector.gitlab;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.GitlabAPIException;
 import org.gitlab.api.models.CreateGroupRequest;
 import org.gitlab.api.models.GitlabAccessLevel;
 import org.gitlab.api.models.GitlabGroup;
@@ -35,41 +45,90 @@ import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.ObjectClassInfo;
 import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptionInfoBuilder;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationalAttributeInfos;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.AndFilter;
+import org.identityconnectors.framework.common.objects.filter.CompositeFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.NotFilter;
+import org.identityconnectors.framework.common.objects.filter.OrFilter;
 import org.identityconnectors.framework.spi.Configuration;
-import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.PoolableConnector;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateOp;
 
 @ConnectorClass(displayNameKey = "gitlab.connector.display", configurationClass = GitlabConfiguration.class)
-public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp, SearchOp<String>, TestOp, UpdateOp {
+public class GitlabConnector implements PoolableConnector, CreateOp, DeleteOp, SchemaOp, SearchOp<GitlabFilter>,
+		SyncOp, TestOp, UpdateOp {
 
 	private static final Log LOG = Log.getLog(GitlabConnector.class);
 
+	/**
+	 * Operation option that overrides configured operationTimeout for a single
+	 * call. Value is number of milliseconds.
+	 */
+	public static final String OPTION_OPERATION_TIMEOUT = "gitlabOperationTimeout";
+
+	/**
+	 * Operation option that turns search into counting. If set to true, no
+	 * objects are returned, total number of matching objects is reported
+	 * as remainingPagedResults of the SearchResult instead. Only filters
+	 * that GitLab evaluates completely can be counted.
+	 */
+	public static final String OPTION_COUNT_ONLY = "gitlabCountOnly";
+
+	/**
+	 * Operation option that names a checkpoint of a keyset search, e.g. by
+	 * the identifier of the task that runs it. The position of the search is
+	 * kept in the state directory after each page, a search with the same
+	 * name that follows an interrupted one continues after that position.
+	 * The checkpoint is removed when the search finishes or the handler
+	 * stops it. Other searches reject the option.
+	 */
+	public static final String OPTION_CHECKPOINT = "gitlabCheckpoint";
+
 	private static final String OBJECT_CLASS_PROJECT_NAME = "Project";
 	private static final String OBJECT_CLASS_MEMBEROF_NAME = "MemberOf";
+	// read-only, memberships inherited from parent groups included
+	private static final String OBJECT_CLASS_EFFECTIVE_MEMBEROF_NAME = "EffectiveMemberOf";
 
 	private static final String ATTR_EMAIL = "email";
 	private static final String ATTR_FULL_NAME = "fullName";
@@ -106,9 +165,50 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 	private static final String ATTR_GROUP_ID = "groupId";
 	private static final String ATTR_ACCESS_LEVEL = "accessLevel";
 	private static final String ATTR_USER_FULLNAME = "userFullname";
+	private static final String ATTR_CREATED_AT = "createdAt";
+	private static final String ATTR_LAST_ACTIVITY_AT = "lastActivityAt";
+	private static final String ATTR_BLOCKED = "blocked";
+	private static final String ATTR_INHERITED = "inherited";
+	private static final String ATTR_EFFECTIVE_ACCESS_LEVEL = "effectiveAccessLevel";
+
+	// GitLab does not return more objects in one page
+	private static final int MAX_PAGE_SIZE = 100;
+
+	// Attributes that GitLab can sort by, mapped to order_by values
+	private static final Map<String, String> USER_ORDER_BY = new HashMap<String, String>();
+	private static final Map<String, String> GROUP_ORDER_BY = new HashMap<String, String>();
+	private static final Map<String, String> PROJECT_ORDER_BY = new HashMap<String, String>();
+
+	static {
+		USER_ORDER_BY.put(Uid.NAME, "id");
+		USER_ORDER_BY.put(Name.NAME, "username");
+		USER_ORDER_BY.put(ATTR_FULL_NAME, "name");
+		USER_ORDER_BY.put(ATTR_CREATED_AT, "created_at");
+
+		GROUP_ORDER_BY.put(Uid.NAME, "id");
+		GROUP_ORDER_BY.put(Name.NAME, "name");
+		GROUP_ORDER_BY.put(ATTR_PATH, "path");
+
+		PROJECT_ORDER_BY.put(Uid.NAME, "id");
+		PROJECT_ORDER_BY.put(Name.NAME, "name");
+		PROJECT_ORDER_BY.put(ATTR_PATH, "path");
+		PROJECT_ORDER_BY.put(ATTR_CREATED_AT, "created_at");
+		PROJECT_ORDER_BY.put(ATTR_LAST_ACTIVITY_AT, "last_activity_at");
+	}
 
 	private GitlabConfiguration configuration;
-	private GitlabAPI gitlabAPI;
+	// one client per API token, keyed by token number
+	private Map<Integer, GitlabAPI> gitlabAPIs;
+	// token used by the last write request
+	private TokenPool.Token writeToken;
+	private GitlabReader reader;
+	// shared state acquired by this instance, released on dispose
+	private MembershipGraph membershipGraph;
+	private Map<String, ObjectMirror> mirrors;
+	private Map<String, FingerprintStore> fingerprintStores;
+	private Deadline deadline = Deadline.NONE;
+	// reads of the current operation feed a write, they must see the primary
+	private boolean writing;
 
 	@Override
 	public Configuration getConfiguration() {
@@ -118,8 +218,589 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 	@Override
 	public void init(Configuration configuration) {
 		this.configuration = (GitlabConfiguration) configuration;
-		gitlabAPI = GitlabAPI.connect(this.configuration.getHostUrl(), this.configuration.getApiToken());
-		gitlabAPI.ignoreCertificateErrors(this.configuration.getIgnoreCertificateErrors());
+		gitlabAPIs = new HashMap<Integer, GitlabAPI>();
+		reader = GitlabReader.get(this.configuration);
+		mirrors = new HashMap<String, ObjectMirror>();
+		fingerprintStores = new HashMap<String, FingerprintStore>();
+	}
+
+	/**
+	 * Pooled instance is usable as long as it is initialized. GitLab is not
+	 * contacted, the state that might go stale (caches, tokens) is shared by
+	 * all instances and maintained independently of them.
+	 */
+	@Override
+	public void checkAlive() {
+		if (configuration == null || reader == null) {
+			throw new IllegalStateException("Connector is not initialized");
+		}
+	}
+
+	/**
+	 * Starts time budget of the operation. Per-call timeout from operation
+	 * options takes precedence over the configured one.
+	 */
+	private void startOperation(OperationOptions options) {
+		long timeout = configuration.getOperationTimeout();
+		if (options != null && options.getOptions() != null) {
+			Object optionTimeout = options.getOptions().get(OPTION_OPERATION_TIMEOUT);
+			if (optionTimeout instanceof Number) {
+				timeout = ((Number) optionTimeout).longValue();
+			} else if (optionTimeout != null) {
+				throw new InvalidAttributeValueException("Option " + OPTION_OPERATION_TIMEOUT + " must be a number");
+			}
+		}
+		deadline = Deadline.after(timeout);
+		writing = false;
+	}
+
+	/**
+	 * Starts time budget of an operation that changes GitLab. All its reads
+	 * go to the primary, read endpoints may lag behind.
+	 */
+	private void startWrite(OperationOptions options) {
+		startOperation(options);
+		writing = true;
+	}
+
+	/**
+	 * GitLab API to be used for the next request. Fails fast if the operation
+	 * budget is already spent and makes sure that a hung request cannot
+	 * outlive the operation deadline. The API token is selected by the token
+	 * pool shared with the reader.
+	 *
+	 * The clients belong to this connector instance and are used only by the
+	 * thread that runs its operation, so setting the read timeout does not
+	 * affect other operations. Background page reads go through the reader,
+	 * which sets timeouts per request.
+	 */
+	private GitlabAPI api() {
+		writeToken = reader.getTokenPool().select();
+		GitlabAPI gitlabAPI = gitlabAPIs.get(writeToken.getNumber());
+		if (gitlabAPI == null) {
+			gitlabAPI = GitlabAPI.connect(configuration.getHostUrl(), writeToken.getValue());
+			gitlabAPI.ignoreCertificateErrors(configuration.getIgnoreCertificateErrors());
+			gitlabAPI.setConnectionTimeout(configuration.getConnectTimeout());
+			gitlabAPIs.put(writeToken.getNumber(), gitlabAPI);
+		}
+		gitlabAPI.setResponseReadTimeout(deadline.limitTimeout(configuration.getReadTimeout(), "next GitLab request"));
+		return gitlabAPI;
+	}
+
+	/**
+	 * Opens paged read of a GitLab collection. Next pages are prefetched
+	 * in background up to given prefetch depth. Total number of objects
+	 * is stored to the total holder if GitLab reports it.
+	 */
+	private <T> PagePrefetcher<T> openPages(final String tailUrl, final Class<T[]> pageType, final int pageSize,
+			int firstPage, int prefetchDepth, final AtomicInteger total) {
+		// the source runs in a prefetch thread, capture the operation state
+		final boolean primary = writing;
+		final Deadline operationDeadline = deadline;
+		PagePrefetcher.PageSource<T> source = new PagePrefetcher.PageSource<T>() {
+			@Override
+			public List<T> fetch(int page) throws IOException {
+				String pageUrl = GitlabReader.withQuery(tailUrl, "page=" + page + "&per_page=" + pageSize);
+				GitlabReader.Response response = reader.fetch(pageUrl, false, primary, operationDeadline);
+				if (response == null) {
+					return Collections.emptyList();
+				}
+				if (total != null) {
+					total.set(getTotal(response));
+				}
+				T[] items = response.as(pageType);
+				if (items == null) {
+					return Collections.emptyList();
+				}
+				return Arrays.asList(items);
+			}
+		};
+		return new PagePrefetcher<T>(source, pageSize, firstPage, prefetchDepth, operationDeadline,
+				reader.getPrefetchExecutor());
+	}
+
+	/**
+	 * Total number of objects in the collection, as reported in pagination
+	 * headers. GitLab omits the headers for very large collections, -1 is
+	 * returned then.
+	 */
+	private int getTotal(GitlabReader.Response response) {
+		String total = response.getHeader("X-Total");
+		if (total == null || total.trim().isEmpty()) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(total.trim());
+		} catch (NumberFormatException e) {
+			LOG.warn("Invalid pagination total {0}", total);
+			return -1;
+		}
+	}
+
+	private boolean isCountOnly(OperationOptions options) {
+		if (options == null || options.getOptions() == null) {
+			return false;
+		}
+		return Boolean.TRUE.equals(options.getOptions().get(OPTION_COUNT_ONLY));
+	}
+
+	private void handleSearchResult(ResultsHandler resultHandler, int remainingPagedResults) {
+		handleSearchResult(resultHandler, null, remainingPagedResults);
+	}
+
+	private void handleSearchResult(ResultsHandler resultHandler, String pagedResultsCookie,
+			int remainingPagedResults) {
+		if (resultHandler instanceof SearchResultsHandler) {
+			((SearchResultsHandler) resultHandler).handleResult(
+					new SearchResult(pagedResultsCookie, remainingPagedResults));
+		}
+	}
+
+	private interface ObjectConverter<T> {
+		ConnectorObject convert(T gitlabObject);
+	}
+
+	private <T> void searchCollection(String tailUrl, Class<T[]> pageType, ObjectConverter<T> converter,
+			GitlabFilter query, ResultsHandler resultHandler, OperationOptions options) {
+		searchCollections(Collections.singletonList(tailUrl), pageType, converter, query, resultHandler, options);
+	}
+
+	/**
+	 * Searches GitLab collections one after another, honouring paged results
+	 * options. Requested page is mapped to GitLab pages, so that aligned pages
+	 * of up to MAX_PAGE_SIZE objects are served by one request.
+	 *
+	 * Paged searches report number of remaining objects in search result.
+	 * If GitLab does not evaluate the query exactly, paged searches read the
+	 * collections from the beginning and apply the offset and the limit to
+	 * the objects that match the original filter, the number of remaining
+	 * objects is not known then.
+	 *
+	 * Count-only searches return no objects, just the total number of objects
+	 * in the search result, which costs one request of a single object per
+	 * collection.
+	 */
+	private <T> void searchCollections(List<String> tailUrls, Class<T[]> pageType, ObjectConverter<T> converter,
+			GitlabFilter query, ResultsHandler resultHandler, OperationOptions options) {
+		if (isCountOnly(options)) {
+			try {
+				int total = 0;
+				for (String tailUrl : tailUrls) {
+					int count = count(tailUrl);
+					if (count < 0) {
+						total = -1;
+						break;
+					}
+					total += count;
+				}
+				handleSearchResult(resultHandler, total);
+			} catch (IOException e) {
+				throw processIOException(e);
+			}
+			return;
+		}
+
+		int perPage = configuration.getPageSize();
+		int start = 0;
+		int limit = -1;
+		int prefetchDepth = configuration.getPrefetchDepth();
+		boolean filterLocally = false;
+		Integer requestedPageSize = options == null ? null : options.getPageSize();
+		if (requestedPageSize != null && requestedPageSize > 0) {
+			Integer offset = options.getPagedResultsOffset();
+			start = offset == null || offset < 1 ? 0 : offset - 1;
+			perPage = Math.min(requestedPageSize, MAX_PAGE_SIZE);
+			limit = requestedPageSize;
+			filterLocally = query != null && !query.isExact();
+			if (filterLocally) {
+				// most of the objects may not match
+				perPage = MAX_PAGE_SIZE;
+			} else if (start % perPage == 0 && limit <= perPage) {
+				// single request, nothing to prefetch
+				prefetchDepth = 0;
+			}
+		}
+
+		int toSkip = start;
+		int handled = 0;
+		AtomicInteger total = new AtomicInteger(-1);
+		try {
+			for (String tailUrl : tailUrls) {
+				int firstPage = 1;
+				if (!filterLocally) {
+					if (toSkip > 0 && tailUrls.size() > 1) {
+						// whole collection may be skipped without reading it
+						int count = count(tailUrl);
+						if (count >= 0 && count <= toSkip) {
+							toSkip -= count;
+							continue;
+						}
+					}
+					firstPage = toSkip / perPage + 1;
+					toSkip -= (firstPage - 1) * perPage;
+				}
+				PagePrefetcher<T> pages = openPages(tailUrl, pageType, perPage, firstPage, prefetchDepth, total);
+				try {
+					List<T> gitlabObjects;
+					while ((gitlabObjects = pages.next()) != null) {
+						for (T gitlabObject : gitlabObjects) {
+							ConnectorObject connectorObject = null;
+							if (filterLocally) {
+								connectorObject = converter.convert(gitlabObject);
+								if (!query.accept(connectorObject)) {
+									continue;
+								}
+							}
+							if (toSkip > 0) {
+								toSkip--;
+								continue;
+							}
+							if (connectorObject == null) {
+								connectorObject = converter.convert(gitlabObject);
+							}
+							if (!resultHandler.handle(connectorObject)) {
+								return;
+							}
+							handled++;
+							if (handled == limit) {
+								handleSearchResult(resultHandler,
+										filterLocally ? -1 : remaining(tailUrls, total, start, handled));
+								return;
+							}
+						}
+					}
+				} finally {
+					pages.close();
+				}
+			}
+		} catch (IOException e) {
+			throw processIOException(e);
+		}
+		if (limit >= 0) {
+			handleSearchResult(resultHandler, 0);
+		}
+	}
+
+	/**
+	 * True if the search should use keyset pagination. Sorted, paged and
+	 * count-only searches use offset pagination. Paged results cookie is
+	 * supported with keyset pagination only.
+	 */
+	private boolean isKeyset(OperationOptions options, boolean supported) {
+		boolean keyset = supported && configuration.getKeysetPagination();
+		if (options == null) {
+			return keyset;
+		}
+		if (options.getPagedResultsCookie() != null) {
+			if (!keyset || options.getSortKeys() != null || options.getPageSize() != null) {
+				throw new UnsupportedOperationException(
+						"Paged results cookie is supported only by unsorted keyset searches of users and projects");
+			}
+			return true;
+		}
+		return keyset && options.getSortKeys() == null && options.getPageSize() == null && !isCountOnly(options);
+	}
+
+	private String getCheckpointName(OperationOptions options) {
+		if (options == null || options.getOptions() == null) {
+			return null;
+		}
+		Object name = options.getOptions().get(OPTION_CHECKPOINT);
+		if (name != null && !(name instanceof String)) {
+			throw new InvalidAttributeValueException("Option " + OPTION_CHECKPOINT + " must be a string");
+		}
+		return (String) name;
+	}
+
+	/**
+	 * Rejects checkpoint in options of a search that does not use keyset
+	 * pagination, such search has no position to keep.
+	 */
+	private void checkNoCheckpoint(ObjectClass objectClass, OperationOptions options) {
+		if (getCheckpointName(options) != null) {
+			throw new UnsupportedOperationException("Option " + OPTION_CHECKPOINT
+					+ " is supported only by unsorted keyset searches of users and projects, not by this search of "
+					+ objectClass);
+		}
+	}
+
+	/**
+	 * Returns checkpoint named by the search options, null if the search did
+	 * not ask for one.
+	 */
+	private ScanCheckpoint getCheckpoint(ObjectClass objectClass, OperationOptions options) {
+		String name = getCheckpointName(options);
+		if (name == null) {
+			return null;
+		}
+		if (configuration.getStateDirectory() == null || configuration.getStateDirectory().trim().isEmpty()) {
+			throw new UnsupportedOperationException("Option " + OPTION_CHECKPOINT + " requires stateDirectory");
+		}
+		return new ScanCheckpoint(new File(configuration.getStateDirectory()), configuration.stateKey(),
+				objectClass.getObjectClassValue(), name);
+	}
+
+	/**
+	 * Reads the collection ordered by ID using keyset pagination, so every
+	 * page costs the same regardless of its position. The search continues
+	 * after the ID given in paged results cookie or, if there is none, after
+	 * the checkpoint of an interrupted search. If the handler stops the
+	 * search, the last returned ID is reported as the cookie and the
+	 * checkpoint is removed, the caller continues by the cookie if at all.
+	 */
+	private <T> void searchKeyset(String tailUrl, Class<T[]> pageType, ObjectConverter<T> converter,
+			ResultsHandler resultHandler, OperationOptions options, ScanCheckpoint checkpoint) {
+		Integer lastId = null;
+		String cookie = options == null ? null : options.getPagedResultsCookie();
+		if (cookie != null) {
+			try {
+				lastId = Integer.valueOf(cookie);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid paged results cookie " + cookie);
+			}
+		} else if (checkpoint != null) {
+			lastId = checkpoint.load(tailUrl);
+			if (lastId != null) {
+				LOG.info("Resuming interrupted search of {0} after ID {1}", tailUrl, lastId);
+			}
+		}
+		String pageUrl = GitlabReader.withQuery(tailUrl, "pagination=keyset&order_by=id&sort=asc&per_page="
+				+ configuration.getPageSize() + (lastId == null ? "" : "&id_after=" + lastId));
+		try {
+			while (pageUrl != null) {
+				GitlabReader.Response response = reader.fetch(pageUrl, false, writing, deadline);
+				if (response == null) {
+					break;
+				}
+				T[] items = response.as(pageType);
+				if (items != null) {
+					for (T item : items) {
+						ConnectorObject connectorObject = converter.convert(item);
+						boolean proceed = resultHandler.handle(connectorObject);
+						lastId = Integer.valueOf(connectorObject.getUid().getUidValue());
+						if (!proceed) {
+							if (checkpoint != null) {
+								checkpoint.clear();
+							}
+							handleSearchResult(resultHandler, lastId.toString(), -1);
+							return;
+						}
+					}
+				}
+				if (checkpoint != null && lastId != null) {
+					checkpoint.save(tailUrl, lastId);
+				}
+				pageUrl = response.getNextPage();
+			}
+		} catch (IOException e) {
+			throw processIOException(e);
+		}
+		if (checkpoint != null) {
+			checkpoint.clear();
+		}
+	}
+
+	/**
+	 * Collections that contain searched projects. Namespace equality is served
+	 * by the group (or user) projects collection, configured project groups
+	 * limit the projects to the groups otherwise.
+	 */
+	private List<String> getProjectCollections(GitlabFilter query) {
+		List<String> tailUrls = new ArrayList<String>();
+		List<String> projectGroups = getScopeGroups();
+		if (query != null && query.getNamespaceId() != null) {
+			String tailUrl;
+			try {
+				tailUrl = getNamespaceProjects(query.getNamespaceId());
+			} catch (IOException e) {
+				throw processIOException(e);
+			}
+			if (tailUrl != null) {
+				tailUrls.add(tailUrl);
+			}
+		} else if (!projectGroups.isEmpty()) {
+			for (String projectGroup : projectGroups) {
+				// projects shared with the group are out of scope, see isInProjectScope
+				String tailUrl = GitlabReader.withQuery(
+						GitlabGroup.URL + "/" + GitlabReader.urlEncode(projectGroup) + GitlabProject.URL,
+						"with_shared=false");
+				if (configuration.getIncludeSubgroupProjects()) {
+					tailUrl = GitlabReader.withQuery(tailUrl, "include_subgroups=true");
+				}
+				tailUrls.add(tailUrl);
+			}
+		} else {
+			tailUrls.add(GitlabProject.URL);
+		}
+		for (int i = 0; i < tailUrls.size(); i++) {
+			if (configuration.getExcludeArchivedProjects()) {
+				tailUrls.set(i, GitlabReader.withQuery(tailUrls.get(i), "archived=false"));
+			}
+		}
+		return tailUrls;
+	}
+
+	/**
+	 * Returns collection of projects in the namespace, null if there are no
+	 * such projects in the configured scope.
+	 */
+	private String getNamespaceProjects(Integer namespaceId) throws IOException {
+		GitlabReader.Response response = reader.fetch(NamespaceDetails.URL + "/" + namespaceId, true, writing,
+				deadline);
+		if (response == null) {
+			return null;
+		}
+		NamespaceDetails namespace = response.as(NamespaceDetails.class);
+		if (namespace == null || !isInProjectScope(namespace.getFullPath())) {
+			return null;
+		}
+		if (NamespaceDetails.KIND_USER.equals(namespace.getKind())) {
+			return GitlabUser.URL + "/" + GitlabReader.urlEncode(namespace.getPath()) + GitlabProject.URL;
+		}
+		return GitlabReader.withQuery(GitlabGroup.URL + "/" + namespaceId + GitlabProject.URL, "with_shared=false");
+	}
+
+	/**
+	 * Configured project groups without duplicates and without subgroups of
+	 * other configured groups when their projects are included anyway, so
+	 * that no project is read from two collections.
+	 */
+	private List<String> getScopeGroups() {
+		List<String> groups = new ArrayList<String>();
+		String[] projectGroups = configuration.getProjectGroups();
+		if (projectGroups == null) {
+			return groups;
+		}
+		for (String projectGroup : projectGroups) {
+			if (projectGroup != null && !projectGroup.isEmpty() && !groups.contains(projectGroup)) {
+				groups.add(projectGroup);
+			}
+		}
+		if (configuration.getIncludeSubgroupProjects()) {
+			List<String> covered = new ArrayList<String>();
+			for (String group : groups) {
+				for (String parent : groups) {
+					if (group.startsWith(parent + "/")) {
+						covered.add(group);
+						break;
+					}
+				}
+			}
+			groups.removeAll(covered);
+		}
+		return groups;
+	}
+
+	private boolean isInProjectScope(String namespacePath) {
+		String[] projectGroups = configuration.getProjectGroups();
+		if (projectGroups == null || projectGroups.length == 0) {
+			return true;
+		}
+		if (namespacePath == null) {
+			return false;
+		}
+		for (String projectGroup : projectGroups) {
+			if (namespacePath.equals(projectGroup)) {
+				return true;
+			}
+			if (configuration.getIncludeSubgroupProjects() && namespacePath.startsWith(projectGroup + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the project is in one of the collections returned by
+	 * getProjectCollections.
+	 */
+	private boolean isInProjectScope(GitlabProject gitlabProject) {
+		if (configuration.getExcludeArchivedProjects() && gitlabProject.isArchived()) {
+			return false;
+		}
+		String path = gitlabProject.getPathWithNamespace();
+		int nameStart = path == null ? -1 : path.lastIndexOf('/');
+		return isInProjectScope(nameStart < 0 ? null : path.substring(0, nameStart));
+	}
+
+	private int remaining(List<String> tailUrls, AtomicInteger total, int start, int handled) {
+		if (tailUrls.size() > 1 || total.get() < 0) {
+			// not known without counting the other collections
+			return -1;
+		}
+		return Math.max(0, total.get() - start - handled);
+	}
+
+	private int count(String tailUrl) throws IOException {
+		GitlabReader.Response response = reader.fetch(GitlabReader.withQuery(tailUrl, "page=1&per_page=1"), false,
+				writing, deadline);
+		return response == null ? 0 : getTotal(response);
+	}
+
+	/**
+	 * Adds GitLab order_by and sort parameters for the sort key in options.
+	 * GitLab can order by a single attribute only.
+	 */
+	private String sorted(String tailUrl, ObjectClass objectClass, Map<String, String> orderByAttrs,
+			OperationOptions options) {
+		SortKey[] sortKeys = options == null ? null : options.getSortKeys();
+		if (sortKeys == null || sortKeys.length == 0) {
+			return tailUrl;
+		}
+		if (sortKeys.length > 1) {
+			throw new UnsupportedOperationException("GitLab supports sorting by one attribute only");
+		}
+		String orderBy = orderByAttrs.get(sortKeys[0].getField());
+		if (orderBy == null) {
+			throw new UnsupportedOperationException(
+					"Sorting of " + objectClass + " by " + sortKeys[0].getField() + " is not supported");
+		}
+		return GitlabReader.withQuery(tailUrl,
+				"order_by=" + orderBy + "&sort=" + (sortKeys[0].isAscendingOrder() ? "asc" : "desc"));
+	}
+
+	private GitlabUser readUser(Integer userId) throws IOException {
+		return reader.read(GitlabUser.URL + "/" + userId, GitlabUser.class, writing, deadline);
+	}
+
+	private GitlabGroup readGroup(Integer groupId) throws IOException {
+		return reader.read(GitlabGroup.URL + "/" + groupId, GitlabGroup.class, writing, deadline);
+	}
+
+	private GitlabProject readProject(String projectId) throws IOException {
+		return reader.read(GitlabProject.URL + "/" + projectId, GitlabProject.class, writing, deadline);
+	}
+
+	private List<GitlabGroupMember> readGroupMembers(Integer groupId) throws IOException {
+		List<GitlabGroupMember> members = reader.readAll(GitlabGroup.URL + "/" + groupId + GitlabGroupMember.URL,
+				GitlabGroupMember[].class, writing, deadline);
+		return members == null ? Collections.<GitlabGroupMember>emptyList() : members;
+	}
+
+	private List<GitlabProjectMember> readProjectMembers(Integer projectId) throws IOException {
+		List<GitlabProjectMember> members = reader.readAll(
+				GitlabProject.URL + "/" + projectId + GitlabProjectMember.URL, GitlabProjectMember[].class, writing,
+				deadline);
+		return members == null ? Collections.<GitlabProjectMember>emptyList() : members;
+	}
+
+	private RuntimeException processIOException(IOException e) {
+		if (e instanceof GitlabAPIException && writeToken != null) {
+			// GitlabAPI does not expose rate limit headers, only the status
+			int responseCode = ((GitlabAPIException) e).getResponseCode();
+			if (responseCode == 429) {
+				writeToken.throttled(null);
+			} else if (responseCode == 401) {
+				writeToken.rejected();
+			}
+		}
+		if (e instanceof SocketTimeoutException) {
+			OperationTimeoutException timeoutException = new OperationTimeoutException(
+					"GitLab request timed out: " + e.getMessage());
+			timeoutException.initCause(e);
+			return timeoutException;
+		}
+		return new ConnectorIOException(e.getMessage(), e);
 	}
 
 	@Override
@@ -130,6 +811,20 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		builder.defineObjectClass(schemaGroup());
 		builder.defineObjectClass(schemaProject());
 		builder.defineObjectClass(schemaMemberOf());
+		ObjectClassInfo effectiveMemberOf = schemaEffectiveMemberOf();
+		builder.defineObjectClass(effectiveMemberOf);
+		builder.removeSupportedObjectClass(CreateOp.class, effectiveMemberOf);
+		builder.removeSupportedObjectClass(UpdateOp.class, effectiveMemberOf);
+		builder.removeSupportedObjectClass(DeleteOp.class, effectiveMemberOf);
+
+		builder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+		builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+		builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+		builder.defineOperationOption(OperationOptionInfoBuilder.buildSortKeys(), SearchOp.class);
+		builder.defineOperationOption(new OperationOptionInfoBuilder(OPTION_COUNT_ONLY, Boolean.class).build(),
+				SearchOp.class);
+		builder.defineOperationOption(new OperationOptionInfoBuilder(OPTION_CHECKPOINT, String.class).build(),
+				SearchOp.class);
 
 		return builder.build();
 	}
@@ -146,6 +841,24 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		return objClassBuilder.build();
 	}
 
+	/**
+	 * Effective memberships computed from direct memberships and the group
+	 * hierarchy. Access level is the level of the direct membership, if
+	 * there is one.
+	 */
+	private ObjectClassInfo schemaEffectiveMemberOf() {
+		ObjectClassInfoBuilder objClassBuilder = new ObjectClassInfoBuilder();
+		objClassBuilder.setType(OBJECT_CLASS_EFFECTIVE_MEMBEROF_NAME);
+
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_USER_ID, Integer.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_GROUP_ID, Integer.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_ACCESS_LEVEL, Integer.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_EFFECTIVE_ACCESS_LEVEL, Integer.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_INHERITED, Boolean.class));
+
+		return objClassBuilder.build();
+	}
+
 	private ObjectClassInfo schemaAccount() {
 		ObjectClassInfoBuilder objClassBuilder = new ObjectClassInfoBuilder();
 
@@ -165,6 +878,8 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_IS_ADMIN, Boolean.class).build());
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_CAN_CREATE_GROUP, Boolean.class).build());
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_CONFIRM, Boolean.class).build());
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_CREATED_AT, Long.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_BLOCKED, Boolean.class));
 		// __PASSWORD__ attribute
 		objClassBuilder.addAttributeInfo(OperationalAttributeInfos.PASSWORD);
 
@@ -214,6 +929,8 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_WIKI_ENABLED, Boolean.class).build());
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_SNIPPETS_ENABLED, Boolean.class).build());
 		objClassBuilder.addAttributeInfo(new AttributeInfoBuilder(ATTR_PUBLIC, Boolean.class).build());
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_CREATED_AT, Long.class));
+		objClassBuilder.addAttributeInfo(readOnlyAttr(ATTR_LAST_ACTIVITY_AT, Long.class));
 
 		AttributeInfoBuilder memberAttrBuilder = new AttributeInfoBuilder(ATTR_MEMBER, Integer.class);
 		memberAttrBuilder.setMultiValued(true);
@@ -222,27 +939,46 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		return objClassBuilder.build();
 	}
 
+	private AttributeInfo readOnlyAttr(String name, Class<?> type) {
+		AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(name, type);
+		attrBuilder.setCreateable(false);
+		attrBuilder.setUpdateable(false);
+		return attrBuilder.build();
+	}
+
 	@Override
 	public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> attributes, OperationOptions options) {
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			return updateUser(uid, attributes, options);
-		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			try {
-				return updateGroup(uid, attributes, options);
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
-			}
-		} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
-			try {
-				return updateProject(uid, attributes, options);
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+		startWrite(options);
+		Uid result;
+		try {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				result = updateUser(uid, attributes, options);
+			} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				try {
+					result = updateGroup(uid, attributes, options);
+				} catch (IOException e) {
+					throw processIOException(e);
+				}
+				if (configuration.getMirrorEnabled()) {
+					// group members might have changed
+					getMirror(new ObjectClass(OBJECT_CLASS_MEMBEROF_NAME), null).invalidate();
+				}
+			} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+				try {
+					result = updateProject(uid, attributes, options);
+				} catch (IOException e) {
+					throw processIOException(e);
+				}
+			} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
+				result = updateMemberOf(uid, attributes, options);
+			} else {
+				throw new UnsupportedOperationException("Unsupported object class " + objectClass);
 			}
-		} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
-			return updateMemberOf(uid, attributes, options);
-		} else {
-			throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+		} finally {
+			reader.markWrite();
 		}
+		updateMirror(objectClass, result, false);
+		return result;
 	}
 
 	private Uid updateMemberOf(Uid uid, Set<Attribute> attributes, OperationOptions options) {
@@ -252,12 +988,13 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		Integer accessLevel = getAttr(attributes, ATTR_ACCESS_LEVEL, Integer.class);
 
 		try {
-			gitlabAPI.deleteGroupMember(groupId, userId);
-			gitlabAPI.addGroupMember(groupId, userId, GitlabAccessLevel.fromAccessValue(accessLevel));
+			api().deleteGroupMember(groupId, userId);
+			api().addGroupMember(groupId, userId, GitlabAccessLevel.fromAccessValue(accessLevel));
+			putMembership(groupId, userId, accessLevel);
 
 			return new Uid(assembleMemberOfUid(userId, groupId));
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 
@@ -266,9 +1003,9 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 
 		GitlabUser origUser;
 		try {
-			origUser = gitlabAPI.getUser(targetUserId);
+			origUser = readUser(targetUserId);
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 		if (origUser == null) {
 			throw new UnknownUidException("User with ID " + targetUserId + " does not exist");
@@ -308,11 +1045,11 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		Boolean can_create_group = getAttr(attributes, ATTR_CAN_CREATE_GROUP, Boolean.class,
 				origUser.isCanCreateGroup());
 		try {
-			GitlabUser gitlabUser = gitlabAPI.updateUser(targetUserId, email, password, username, fullName, skypeId,
+			GitlabUser gitlabUser = api().updateUser(targetUserId, email, password, username, fullName, skypeId,
 					linkedIn, twitter, website_url, projects_limit, extern_uid, extern_provider_name, bio, isAdmin,
 					can_create_group);
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 
 		return uid;
@@ -321,7 +1058,7 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 	private Uid updateGroup(Uid uid, Set<Attribute> attributes, OperationOptions options) throws IOException {
 		Integer targetId = toInteger(uid);
 
-		GitlabGroup origGroup = gitlabAPI.getGroup(targetId);
+		GitlabGroup origGroup = readGroup(targetId);
 		if (origGroup == null) {
 			throw new UnknownUidException("Group with ID " + targetId + " does not exist");
 		}
@@ -345,7 +1082,7 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 				List<Integer> newMemberIds = new ArrayList<Integer>(values.size());
 				List<Integer> membersToAdd = new ArrayList<Integer>();
 				List<Integer> membersToDelete = new ArrayList<Integer>();
-				List<GitlabGroupMember> origMembers = gitlabAPI.getGroupMembers(origGroup);
+				List<GitlabGroupMember> origMembers = readGroupMembers(targetId);
 				for (Object attrValue : values) {
 					newMemberIds.add(Integer.parseInt((String) attrValue));
 				}
@@ -369,11 +1106,13 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 				}
 
 				for (Integer memberId : membersToAdd) {
-					gitlabAPI.addGroupMember(targetId, memberId, GitlabAccessLevel.Developer);
+					api().addGroupMember(targetId, memberId, GitlabAccessLevel.Developer);
+					putMembership(targetId, memberId, GitlabAccessLevel.Developer.accessValue);
 				}
 
 				for (Integer memberId : membersToDelete) {
-					gitlabAPI.deleteGroupMember(targetId, memberId);
+					api().deleteGroupMember(targetId, memberId);
+					getMembershipGraph().removeMember(targetId, memberId);
 				}
 			}
 		}
@@ -384,7 +1123,7 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 	private Uid updateProject(Uid uid, Set<Attribute> attributes, OperationOptions options) throws IOException {
 		Integer targetId = toInteger(uid);
 
-		GitlabProject origProject = gitlabAPI.getProject(uid.getUidValue());
+		GitlabProject origProject = readProject(uid.getUidValue());
 		if (origProject == null) {
 			throw new UnknownUidException("Project with ID " + targetId + " does not exist");
 		}
@@ -405,7 +1144,7 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 				List<Integer> newMemberIds = new ArrayList<Integer>(values.size());
 				List<Integer> membersToAdd = new ArrayList<Integer>();
 				List<Integer> membersToDelete = new ArrayList<Integer>();
-				List<GitlabProjectMember> origMembers = gitlabAPI.getProjectMembers(origProject);
+				List<GitlabProjectMember> origMembers = readProjectMembers(targetId);
 				for (Object attrValue : values) {
 					newMemberIds.add(Integer.parseInt((String) attrValue));
 				}
@@ -433,12 +1172,12 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 
 				for (Integer memberId : membersToAdd) {
 					LOG.ok("Adding account {0} to project {1}", targetId, memberId);
-					gitlabAPI.addProjectMember(targetId, memberId, GitlabAccessLevel.Developer);
+					api().addProjectMember(targetId, memberId, GitlabAccessLevel.Developer);
 				}
 
 				for (Integer memberId : membersToDelete) {
 					LOG.ok("Deleting account {0} from project {1}", targetId, memberId);
-					gitlabAPI.deleteProjectMember(targetId, memberId);
+					api().deleteProjectMember(targetId, memberId);
 				}
 			}
 		}
@@ -448,80 +1187,575 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 
 	@Override
 	public void test() {
+		startOperation(null);
 		try {
-			gitlabAPI.getGroups();
+			api().getGroups();
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
+		LOG.info("GitLab API tokens: {0}", reader.getTokenPool().getMetrics());
 	}
 
 	@Override
-	public FilterTranslator<String> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
-		return new AbstractFilterTranslator<String>() {
+	public FilterTranslator<GitlabFilter> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+		final GitlabFilterTranslator translator = new GitlabFilterTranslator(objectClass);
+		return new FilterTranslator<GitlabFilter>() {
+			@Override
+			public List<GitlabFilter> translate(Filter filter) {
+				return translator.translateMarked(filter);
+			}
 		};
 	}
 
+	/**
+	 * Translates filters on attributes that GitLab can search by to GitLab
+	 * query parameters. Other filters are evaluated by the ICF framework.
+	 */
+	private static class GitlabFilterTranslator extends AbstractFilterTranslator<GitlabFilter> {
+
+		private final ObjectClass objectClass;
+
+		GitlabFilterTranslator(ObjectClass objectClass) {
+			this.objectClass = objectClass;
+		}
+
+		/**
+		 * Translates the filter like {@link #translate(Filter)}, but marks the
+		 * result as not exact if some part of the filter was not translated
+		 * (the framework leaves such parts out). Filter that cannot be
+		 * translated at all results in an empty, not exact query instead of
+		 * no query, so the search still knows it is filtered.
+		 */
+		List<GitlabFilter> translateMarked(Filter filter) {
+			List<GitlabFilter> queries = translate(filter);
+			if (filter == null) {
+				return queries;
+			}
+			if (queries.isEmpty()) {
+				GitlabFilter query = new GitlabFilter();
+				query.markInexact();
+				queries = new ArrayList<GitlabFilter>();
+				queries.add(query);
+			}
+			boolean translated = queries.size() == 1 && isTranslated(filter, false);
+			for (GitlabFilter query : queries) {
+				if (!translated) {
+					// several queries are OR, each of them selects a part only
+					query.markInexact();
+				}
+				query.setOriginal(filter);
+			}
+			return queries;
+		}
+
+		/**
+		 * True if every part of the filter is translated, after negations are
+		 * moved to the leaves the same way the framework does it.
+		 */
+		private boolean isTranslated(Filter filter, boolean not) {
+			if (filter instanceof NotFilter) {
+				return isTranslated(((NotFilter) filter).getFilter(), !not);
+			}
+			if (filter instanceof AndFilter || filter instanceof OrFilter) {
+				// NOT (a OR b) is NOT a AND NOT b, OR is never translated
+				if ((filter instanceof AndFilter) == not) {
+					return false;
+				}
+				CompositeFilter composite = (CompositeFilter) filter;
+				return isTranslated(composite.getLeft(), not) && isTranslated(composite.getRight(), not);
+			}
+			GitlabFilter query;
+			if (filter instanceof EqualsFilter) {
+				query = createEqualsExpression((EqualsFilter) filter, not);
+			} else if (filter instanceof GreaterThanFilter) {
+				query = createGreaterThanExpression((GreaterThanFilter) filter, not);
+			} else if (filter instanceof GreaterThanOrEqualFilter) {
+				query = createGreaterThanOrEqualExpression((GreaterThanOrEqualFilter) filter, not);
+			} else if (filter instanceof LessThanFilter) {
+				query = createLessThanExpression((LessThanFilter) filter, not);
+			} else if (filter instanceof LessThanOrEqualFilter) {
+				query = createLessThanOrEqualExpression((LessThanOrEqualFilter) filter, not);
+			} else {
+				return false;
+			}
+			// translated parts that are not exact (ranges) mark the result themselves
+			return query != null;
+		}
+
+		@Override
+		protected GitlabFilter createAndExpression(GitlabFilter leftExpression, GitlabFilter rightExpression) {
+			return leftExpression.and(rightExpression);
+		}
+
+		@Override
+		protected GitlabFilter createEqualsExpression(EqualsFilter filter, boolean not) {
+			if (not) {
+				return null;
+			}
+			String name = filter.getAttribute().getName();
+			Object value = AttributeUtil.getSingleValue(filter.getAttribute());
+			if (value == null) {
+				return null;
+			}
+			if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+				if (ATTR_NAMESPACE.equals(name) && value instanceof Number) {
+					return GitlabFilter.namespace(((Number) value).intValue());
+				}
+				return null;
+			}
+			if (!objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				return null;
+			}
+			if (ATTR_EXTERN_UID.equals(name)) {
+				return new GitlabFilter(GitlabFilter.PARAM_EXTERN_UID, value.toString());
+			} else if (ATTR_EXTERN_PROVIDER_NAME.equals(name)) {
+				return new GitlabFilter(GitlabFilter.PARAM_PROVIDER, value.toString());
+			} else if (ATTR_IS_ADMIN.equals(name) && Boolean.TRUE.equals(value)) {
+				return new GitlabFilter("admins", "true");
+			} else if (ATTR_BLOCKED.equals(name) && Boolean.TRUE.equals(value)) {
+				// GitLab has no filter for users that are not blocked, "active"
+				// leaves out e.g. deactivated users as well
+				return new GitlabFilter("blocked", "true");
+			}
+			return null;
+		}
+
+		@Override
+		protected GitlabFilter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+			return createCreatedRange(filter.getAttribute(), !not, not);
+		}
+
+		@Override
+		protected GitlabFilter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter, boolean not) {
+			return createCreatedRange(filter.getAttribute(), !not, !not);
+		}
+
+		@Override
+		protected GitlabFilter createLessThanExpression(LessThanFilter filter, boolean not) {
+			return createCreatedRange(filter.getAttribute(), not, not);
+		}
+
+		@Override
+		protected GitlabFilter createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+			return createCreatedRange(filter.getAttribute(), not, !not);
+		}
+
+		/**
+		 * GitLab compares creation time exclusively or inclusively, depending on
+		 * the version. The bound is moved by one millisecond for inclusive
+		 * ranges, so the result never misses a matching user. GitLab also
+		 * compares with microsecond precision, the range is therefore never
+		 * exact.
+		 */
+		private GitlabFilter createCreatedRange(Attribute attribute, boolean after, boolean inclusive) {
+			if (!objectClass.is(ObjectClass.ACCOUNT_NAME) || !ATTR_CREATED_AT.equals(attribute.getName())) {
+				return null;
+			}
+			Object value = AttributeUtil.getSingleValue(attribute);
+			if (!(value instanceof Number)) {
+				return null;
+			}
+			long bound = ((Number) value).longValue();
+			if (inclusive) {
+				bound = after ? bound - 1 : bound + 1;
+			}
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return GitlabFilter.inexact(after ? "created_after" : "created_before", format.format(new Date(bound)));
+		}
+	}
+
 	@Override
-	public void executeQuery(ObjectClass objectClass, String query, ResultsHandler resultHandler,
+	public void executeQuery(ObjectClass objectClass, GitlabFilter query, ResultsHandler resultHandler,
 			OperationOptions options) {
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			List<GitlabUser> gitlabUsers;
+		startOperation(options);
+		if (query != null && !query.isExact() && isCountOnly(options)) {
+			// GitLab would count a superset of the results
+			throw new UnsupportedOperationException("Counting of " + objectClass
+					+ " is supported only with filters that GitLab can evaluate completely, not " + query);
+		}
+		ObjectMirror mirror = null;
+		if (options == null || (options.getSortKeys() == null && options.getPageSize() == null
+				&& options.getPagedResultsCookie() == null && !isCountOnly(options)
+				&& getCheckpointName(options) == null)) {
+			// Mirror can serve and record complete unordered searches only,
+			// a search resumed from a checkpoint is not complete
+			mirror = getMirror(objectClass, query);
+		}
+		if (mirror == null) {
+			searchRemote(objectClass, query, resultHandler, options);
+		} else if (mirror.isFresh(configuration.getMirrorMaxAge() * 1000L)) {
+			LOG.ok("Searching {0} in local mirror", objectClass);
+			mirror.search(resultHandler);
+		} else {
+			ObjectMirror.Population population = mirror.populate(resultHandler);
 			try {
-				gitlabUsers = gitlabAPI.getUsers();
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+				searchRemote(objectClass, query, population, options);
+				population.commit();
+			} finally {
+				population.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns mirror that can serve the search, null if the search must go
+	 * to GitLab directly.
+	 */
+	private ObjectMirror getMirror(ObjectClass objectClass, GitlabFilter query) {
+		if (!configuration.getMirrorEnabled() || (query != null && !query.isEmpty())
+				|| objectClass.is(OBJECT_CLASS_EFFECTIVE_MEMBEROF_NAME)) {
+			// effective memberships are served by the membership graph
+			return null;
+		}
+		ObjectMirror mirror = mirrors.get(objectClass.getObjectClassValue());
+		if (mirror == null) {
+			mirror = ObjectMirror.get(new File(configuration.getStateDirectory()), configuration.stateKey(),
+					objectClass.getObjectClassValue());
+			mirrors.put(objectClass.getObjectClassValue(), mirror);
+		}
+		return mirror;
+	}
+
+	/**
+	 * Brings the mirror up to date after the object was changed by this
+	 * connector. If that is not possible, the mirror is invalidated.
+	 */
+	void updateMirror(ObjectClass objectClass, Uid uid, boolean deleted) {
+		if (!configuration.getMirrorEnabled()) {
+			return;
+		}
+		ObjectMirror mirror = getMirror(objectClass, null);
+		if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
+			// Membership name is not known here, full search is needed
+			mirror.invalidate();
+			// members of the group changed as well
+			updateMirror(ObjectClass.GROUP, new Uid(getGroupIdFromMemberOfUid(uid.getUidValue()).toString()), false);
+			return;
+		}
+		if (deleted) {
+			mirror.remove(uid.getUidValue());
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				// the user was a member of groups and projects as well
+				getMirror(ObjectClass.GROUP, null).invalidate();
+				getMirror(new ObjectClass(OBJECT_CLASS_PROJECT_NAME), null).invalidate();
+				getMirror(new ObjectClass(OBJECT_CLASS_MEMBEROF_NAME), null).invalidate();
 			}
-			for (GitlabUser gitlabUser : gitlabUsers) {
-				ConnectorObject connectorObject = convertUserToConnectorObject(gitlabUser);
-				resultHandler.handle(connectorObject);
+			return;
+		}
+		try {
+			ConnectorObject connectorObject = readObject(objectClass, uid);
+			if (connectorObject == null) {
+				mirror.remove(uid.getUidValue());
+			} else {
+				mirror.put(connectorObject);
 			}
+		} catch (IOException e) {
+			LOG.warn(e, "Cannot refresh {0} {1} in local mirror", objectClass, uid.getUidValue());
+			mirror.invalidate();
+		} catch (RuntimeException e) {
+			LOG.warn(e, "Cannot refresh {0} {1} in local mirror", objectClass, uid.getUidValue());
+			mirror.invalidate();
+		}
+	}
 
+	/**
+	 * Reads the object as a search would return it, null if it does not exist
+	 * or it is out of the configured scope.
+	 */
+	private ConnectorObject readObject(ObjectClass objectClass, Uid uid) throws IOException {
+		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+			GitlabUser gitlabUser = readUser(toInteger(uid));
+			return gitlabUser == null ? null : convertUserToConnectorObject(gitlabUser);
 		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			List<GitlabGroup> gitlabGroups;
-			try {
-				gitlabGroups = gitlabAPI.getGroups();
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+			GitlabGroup gitlabGroup = readGroup(toInteger(uid));
+			return gitlabGroup == null ? null : convertGroupToConnectorObject(gitlabGroup);
+		} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+			GitlabProject gitlabProject = readProject(uid.getUidValue());
+			if (gitlabProject == null || !isInProjectScope(gitlabProject)) {
+				return null;
+			}
+			return convertProjectToConnectorObject(gitlabProject);
+		} else {
+			throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+		}
+	}
+
+	/**
+	 * Reports objects added, changed or deleted since the previous
+	 * synchronization. All objects are read and compared with their stored
+	 * fingerprints, so this works without any change information from GitLab.
+	 * The fingerprints are replaced only after a complete run, an interrupted
+	 * run is repeated by the next synchronization regardless of the token.
+	 */
+	@Override
+	public void sync(final ObjectClass objectClass, SyncToken token, final SyncResultsHandler handler,
+			OperationOptions options) {
+		startOperation(options);
+		FingerprintStore store = getFingerprintStore(objectClass);
+		Integer generation = token != null && token.getValue() instanceof Number
+				? ((Number) token.getValue()).intValue() : null;
+		final FingerprintStore.Comparison comparison = store.compare(generation);
+		final SyncToken newToken = new SyncToken(comparison.getGeneration());
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		searchRemote(objectClass, null, new ResultsHandler() {
+			@Override
+			public boolean handle(ConnectorObject connectorObject) {
+				if (!comparison.isChanged(connectorObject)) {
+					return true;
+				}
+				SyncDeltaBuilder deltaBuilder = new SyncDeltaBuilder();
+				deltaBuilder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+				deltaBuilder.setToken(newToken);
+				deltaBuilder.setObject(connectorObject);
+				if (!handler.handle(deltaBuilder.build())) {
+					stopped.set(true);
+					return false;
+				}
+				return true;
 			}
-			for (GitlabGroup gitlabGroup : gitlabGroups) {
-				ConnectorObject connectorObject = convertGroupToConnectorObject(gitlabGroup);
-				resultHandler.handle(connectorObject);
+		}, null);
+		if (stopped.get()) {
+			return;
+		}
+		for (String uid : comparison.getDeletedUids()) {
+			SyncDeltaBuilder deltaBuilder = new SyncDeltaBuilder();
+			deltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+			deltaBuilder.setToken(newToken);
+			deltaBuilder.setObjectClass(objectClass);
+			deltaBuilder.setUid(new Uid(uid));
+			if (!handler.handle(deltaBuilder.build())) {
+				return;
+			}
+		}
+		// becomes the baseline when the next sync confirms the new token
+		comparison.stage();
+	}
+
+	/**
+	 * Returns generation of the stored fingerprints. If there are none yet,
+	 * the current state is recorded first, so that the following
+	 * synchronization reports only later changes.
+	 */
+	@Override
+	public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+		startOperation(null);
+		FingerprintStore store = getFingerprintStore(objectClass);
+		if (store.getGeneration() == 0) {
+			final FingerprintStore.Comparison comparison = store.compare();
+			searchRemote(objectClass, null, new ResultsHandler() {
+				@Override
+				public boolean handle(ConnectorObject connectorObject) {
+					comparison.isChanged(connectorObject);
+					return true;
+				}
+			}, null);
+			comparison.commit();
+		}
+		return new SyncToken(store.getGeneration());
+	}
+
+	private FingerprintStore getFingerprintStore(ObjectClass objectClass) {
+		if (!configuration.getFingerprintSync()) {
+			throw new UnsupportedOperationException("Synchronization requires fingerprintSync to be enabled");
+		}
+		FingerprintStore store = fingerprintStores.get(objectClass.getObjectClassValue());
+		if (store == null) {
+			store = FingerprintStore.get(new File(configuration.getStateDirectory()), configuration.stateKey(),
+					objectClass.getObjectClassValue());
+			fingerprintStores.put(objectClass.getObjectClassValue(), store);
+		}
+		return store;
+	}
+
+	/**
+	 * Searches GitLab. Searches with a checkpoint option may continue after
+	 * the checkpoint of an interrupted search, other searches (e.g. the ones
+	 * that populate the mirror) always start from the beginning.
+	 */
+	private void searchRemote(ObjectClass objectClass, GitlabFilter query, ResultsHandler resultHandler,
+			OperationOptions options) {
+		if (options != null && options.getPagedResultsCookie() != null && !objectClass.is(ObjectClass.ACCOUNT_NAME)
+				&& !objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+			throw new UnsupportedOperationException("Paged results cookie is not supported for " + objectClass);
+		}
+		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+			String tailUrl = query == null ? GitlabUser.URL : query.apply(GitlabUser.URL);
+			ObjectConverter<GitlabUser> converter = new ObjectConverter<GitlabUser>() {
+				@Override
+				public ConnectorObject convert(GitlabUser gitlabUser) {
+					return convertUserToConnectorObject(gitlabUser);
+				}
+			};
+			if (isKeyset(options, true)) {
+				searchKeyset(tailUrl, GitlabUser[].class, converter, resultHandler, options,
+						getCheckpoint(objectClass, options));
+			} else {
+				checkNoCheckpoint(objectClass, options);
+				searchCollection(sorted(tailUrl, objectClass, USER_ORDER_BY, options), GitlabUser[].class, converter,
+						query, resultHandler, options);
 			}
+		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+			checkNoCheckpoint(objectClass, options);
+			searchCollection(sorted(GitlabGroup.URL, objectClass, GROUP_ORDER_BY, options), GitlabGroup[].class,
+					new ObjectConverter<GitlabGroup>() {
+						@Override
+						public ConnectorObject convert(GitlabGroup gitlabGroup) {
+							return convertGroupToConnectorObject(gitlabGroup);
+						}
+					}, query, resultHandler, options);
 		} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
-			List<GitlabProject> gitlabProjects;
-			try {
-				gitlabProjects = gitlabAPI.getProjects();
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+			List<String> tailUrls = getProjectCollections(query);
+			ObjectConverter<GitlabProject> converter = new ObjectConverter<GitlabProject>() {
+				@Override
+				public ConnectorObject convert(GitlabProject gitlabProject) {
+					return convertProjectToConnectorObject(gitlabProject);
+				}
+			};
+			// group project collections are read with offset pagination
+			if (isKeyset(options, tailUrls.size() == 1 && tailUrls.get(0).startsWith(GitlabProject.URL))) {
+				searchKeyset(tailUrls.get(0), GitlabProject[].class, converter, resultHandler, options,
+						getCheckpoint(objectClass, options));
+				return;
 			}
-			for (GitlabProject gitlabProject : gitlabProjects) {
-				ConnectorObject connectorObject = convertProjectToConnectorObject(gitlabProject);
-				resultHandler.handle(connectorObject);
+			checkNoCheckpoint(objectClass, options);
+			if (tailUrls.size() > 1 && options != null && options.getSortKeys() != null
+					&& options.getSortKeys().length > 0) {
+				throw new UnsupportedOperationException(
+						"Sorting of projects is not supported when more project groups are configured");
 			}
+			for (int i = 0; i < tailUrls.size(); i++) {
+				tailUrls.set(i, sorted(tailUrls.get(i), objectClass, PROJECT_ORDER_BY, options));
+			}
+			searchCollections(tailUrls, GitlabProject[].class, converter, query, resultHandler, options);
 		} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
-			List<GitlabGroup> gitlabGroups;
-			Map<Integer, List<GitlabGroupMember>> gitlabGroupsMembers = new HashMap<Integer, List<GitlabGroupMember>>();
+			if (isCountOnly(options)) {
+				throw new UnsupportedOperationException("Count-only search of memberships is not supported");
+			}
+			checkNoCheckpoint(objectClass, options);
+			PagePrefetcher<GitlabGroup> pages = openPages(GitlabGroup.URL, GitlabGroup[].class,
+					configuration.getPageSize(), 1, configuration.getPrefetchDepth(), null);
 			try {
-				gitlabGroups = gitlabAPI.getGroups();
-				for (GitlabGroup g : gitlabGroups) {
-					if (!gitlabGroupsMembers.containsKey(g.getId()))
-						gitlabGroupsMembers.put(g.getId(),
-								new ArrayList<GitlabGroupMember>(gitlabAPI.getGroupMembers(g.getId())));
+				List<GitlabGroup> gitlabGroups;
+				while ((gitlabGroups = pages.next()) != null) {
+					for (GitlabGroup gitlabGroup : gitlabGroups) {
+						Integer groupId = gitlabGroup.getId();
+						for (GitlabGroupMember gitlabGroupMember : readGroupMembers(groupId)) {
+							ConnectorObject connectorObject = convertMemberOfToConnectorObject(groupId, gitlabGroupMember);
+							if (!resultHandler.handle(connectorObject)) {
+								return;
+							}
+						}
+					}
 				}
 			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+				throw processIOException(e);
+			} finally {
+				pages.close();
 			}
-			for (Map.Entry<Integer, List<GitlabGroupMember>> gitlabGroupMembers : gitlabGroupsMembers.entrySet()) {
-				for (GitlabGroupMember gitlabGroupMember : gitlabGroupMembers.getValue()) {
-					ConnectorObject connectorObject = convertMemberOfToConnectorObject(gitlabGroupMembers.getKey(), gitlabGroupMember);
-					resultHandler.handle(connectorObject);
-				}
+		} else if (objectClass.is(OBJECT_CLASS_EFFECTIVE_MEMBEROF_NAME)) {
+			if (isCountOnly(options)) {
+				throw new UnsupportedOperationException("Count-only search of memberships is not supported");
 			}
+			checkNoCheckpoint(objectClass, options);
+			searchEffectiveMemberships(resultHandler);
 		} else {
 			throw new UnsupportedOperationException("Unsupported object class " + objectClass);
 		}
 	}
 
+	private void searchEffectiveMemberships(ResultsHandler resultHandler) {
+		MembershipGraph graph = getMembershipGraph();
+		if (!graph.isFresh(configuration.getMembershipGraphMaxAge() * 1000L)) {
+			graph.replace(readMembershipGraph());
+		}
+		for (MembershipGraph.Membership membership : graph.getMemberships()) {
+			if (!resultHandler.handle(convertMembershipToConnectorObject(membership))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the group hierarchy and direct members of all groups in one pass.
+	 */
+	private MembershipGraph.Builder readMembershipGraph() {
+		MembershipGraph.Builder builder = new MembershipGraph.Builder();
+		PagePrefetcher<GitlabGroup> pages = openPages(GitlabGroup.URL, GitlabGroup[].class,
+				configuration.getPageSize(), 1, configuration.getPrefetchDepth(), null);
+		try {
+			List<GitlabGroup> gitlabGroups;
+			while ((gitlabGroups = pages.next()) != null) {
+				for (GitlabGroup gitlabGroup : gitlabGroups) {
+					Integer groupId = gitlabGroup.getId();
+					builder.addGroup(groupId, gitlabGroup.getParentId());
+					for (GitlabGroupMember gitlabGroupMember : readGroupMembers(groupId)) {
+						builder.addMember(groupId, gitlabGroupMember.getId(),
+								gitlabGroupMember.getAccessLevel().accessValue, gitlabGroupMember.getName());
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw processIOException(e);
+		} finally {
+			pages.close();
+		}
+		return builder;
+	}
+
+	private MembershipGraph getMembershipGraph() {
+		if (membershipGraph == null) {
+			membershipGraph = MembershipGraph.get(configuration.sharedStateKey());
+		}
+		return membershipGraph;
+	}
+
+	/**
+	 * Records direct membership created or changed by this connector, so the
+	 * effective memberships need not be read again. The membership was
+	 * already written, so failure to read the user name does not fail the
+	 * operation, the graph is read again by the next search instead.
+	 */
+	private void putMembership(Integer groupId, Integer userId, int accessLevel) {
+		MembershipGraph graph = getMembershipGraph();
+		if (!graph.isBuilt()) {
+			return;
+		}
+		String userName = graph.getUserName(userId);
+		if (userName == null) {
+			Exception failure;
+			try {
+				GitlabUser gitlabUser = readUser(userId);
+				userName = gitlabUser == null ? userId.toString() : gitlabUser.getName();
+				failure = null;
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			if (failure != null) {
+				LOG.warn(failure, "Cannot read user {0} for membership in group {1}, membership graph invalidated",
+						userId, groupId);
+				graph.invalidate();
+				return;
+			}
+		}
+		graph.putMember(groupId, userId, accessLevel, userName);
+	}
+
+	private ConnectorObject convertMembershipToConnectorObject(MembershipGraph.Membership membership) {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setUid(assembleMemberOfUid(membership.getUserId(), membership.getGroupId()));
+		builder.setObjectClass(new ObjectClass(OBJECT_CLASS_EFFECTIVE_MEMBEROF_NAME));
+		builder.setName(membership.getGroupId().toString().concat(membership.getUserName()));
+		addAttr(builder, ATTR_USER_ID, membership.getUserId());
+		addAttr(builder, ATTR_GROUP_ID, membership.getGroupId());
+		addAttr(builder, ATTR_ACCESS_LEVEL, membership.getAccessLevel());
+		addAttr(builder, ATTR_EFFECTIVE_ACCESS_LEVEL, membership.getEffectiveAccessLevel());
+		addAttr(builder, ATTR_INHERITED, membership.isInherited());
+		return builder.build();
+	}
+
 	private ConnectorObject convertMemberOfToConnectorObject(Integer groupId, GitlabGroupMember gitlabGroupMember) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 		builder.setUid(assembleMemberOfUid(gitlabGroupMember.getId(), groupId));
@@ -548,9 +1782,20 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		addAttr(builder, ATTR_BIO, gitlabUser.getBio());
 		addAttr(builder, ATTR_IS_ADMIN, gitlabUser.isAdmin());
 		addAttr(builder, ATTR_CAN_CREATE_GROUP, gitlabUser.isCanCreateGroup());
+		addAttr(builder, ATTR_CREATED_AT, toMillis(gitlabUser.getCreatedAt()));
+		if (gitlabUser.getState() != null) {
+			addAttr(builder, ATTR_BLOCKED, isBlocked(gitlabUser.getState()));
+		}
 		return builder.build();
 	}
 
+	/**
+	 * States that GitLab selects by the blocked=true filter.
+	 */
+	private static boolean isBlocked(String state) {
+		return "blocked".equals(state) || "ldap_blocked".equals(state);
+	}
+
 	private ConnectorObject convertGroupToConnectorObject(GitlabGroup gitlabGroup) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 		builder.setObjectClass(ObjectClass.GROUP);
@@ -563,9 +1808,9 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		memberAttrBuilder.setName(ATTR_MEMBER);
 		List<GitlabGroupMember> groupMembers;
 		try {
-			groupMembers = gitlabAPI.getGroupMembers(gitlabGroup);
+			groupMembers = readGroupMembers(gitlabGroup.getId());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 		if (groupMembers != null && !groupMembers.isEmpty()) {
 			for (GitlabGroupMember gitlabMember : groupMembers) {
@@ -601,14 +1846,16 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		addAttr(builder, ATTR_SNIPPETS_ENABLED, gitlabProject.isSnippetsEnabled());
 		addAttr(builder, ATTR_WALL_ENABLED, gitlabProject.isWallEnabled());
 		addAttr(builder, ATTR_WIKI_ENABLED, gitlabProject.isWikiEnabled());
+		addAttr(builder, ATTR_CREATED_AT, toMillis(gitlabProject.getCreatedAt()));
+		addAttr(builder, ATTR_LAST_ACTIVITY_AT, toMillis(gitlabProject.getLastActivityAt()));
 
 		AttributeBuilder memberAttrBuilder = new AttributeBuilder();
 		memberAttrBuilder.setName(ATTR_MEMBER);
 		List<GitlabProjectMember> members;
 		try {
-			members = gitlabAPI.getProjectMembers(gitlabProject);
+			members = readProjectMembers(gitlabProject.getId());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 		if (members != null && !members.isEmpty()) {
 			for (GitlabProjectMember gitlabMember : members) {
@@ -621,6 +1868,10 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		return builder.build();
 	}
 
+	private Long toMillis(Date date) {
+		return date == null ? null : date.getTime();
+	}
+
 	private <T> void addAttr(ConnectorObjectBuilder builder, String attrName, T attrVal) {
 		if (attrVal != null) {
 			builder.addAttribute(attrName, attrVal);
@@ -629,25 +1880,34 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 
 	@Override
 	public void delete(ObjectClass objectClass, Uid uid, OperationOptions options) {
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			try {
-				gitlabAPI.deleteUser(toInteger(uid));
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
-			}
-		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			throw new UnsupportedOperationException("Deletion of group seems to be not supported by Gitlab API");
-		} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
-			throw new UnsupportedOperationException("Deletion of project seems to be not supported by Gitlab API");
-		} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
-			try {
-				gitlabAPI.deleteGroupMember(getGroupIdFromMemberOfUid(uid.getUidValue()), getUserIdFromMemberOfUid(uid.getUidValue()));
-			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+		startWrite(options);
+		try {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				try {
+					api().deleteUser(toInteger(uid));
+					getMembershipGraph().removeUser(toInteger(uid));
+				} catch (IOException e) {
+					throw processIOException(e);
+				}
+			} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				throw new UnsupportedOperationException("Deletion of group seems to be not supported by Gitlab API");
+			} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+				throw new UnsupportedOperationException("Deletion of project seems to be not supported by Gitlab API");
+			} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
+				try {
+					api().deleteGroupMember(getGroupIdFromMemberOfUid(uid.getUidValue()), getUserIdFromMemberOfUid(uid.getUidValue()));
+					getMembershipGraph().removeMember(getGroupIdFromMemberOfUid(uid.getUidValue()),
+							getUserIdFromMemberOfUid(uid.getUidValue()));
+				} catch (IOException e) {
+					throw processIOException(e);
+				}
+			} else {
+				throw new UnsupportedOperationException("Unsupported object class " + objectClass);
 			}
-		} else {
-			throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+		} finally {
+			reader.markWrite();
 		}
+		updateMirror(objectClass, uid, true);
 	}
 
 	private Integer toInteger(Uid uid) {
@@ -656,21 +1916,30 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 
 	@Override
 	public Uid create(ObjectClass objectClass, Set<Attribute> attributes, OperationOptions options) {
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			Uid userUid = checkUser(attributes, options);
-			// User will be created
-			if (userUid == null)
-				return createUser(attributes, options);
-			return userUid;
-		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			return createGroup(attributes, options);
-		} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
-			return createProject(attributes, options);
-		} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
-			return createMemberOf(attributes, options);
-		} else {
-			throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+		startWrite(options);
+		Uid result;
+		try {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				Uid userUid = checkUser(attributes, options);
+				// User will be created
+				if (userUid == null)
+					result = createUser(attributes, options);
+				else
+					result = userUid;
+			} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				result = createGroup(attributes, options);
+			} else if (objectClass.is(OBJECT_CLASS_PROJECT_NAME)) {
+				result = createProject(attributes, options);
+			} else if (objectClass.is(OBJECT_CLASS_MEMBEROF_NAME)) {
+				result = createMemberOf(attributes, options);
+			} else {
+				throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+			}
+		} finally {
+			reader.markWrite();
 		}
+		updateMirror(objectClass, result, false);
+		return result;
 	}
 
 	private Uid createMemberOf(Set<Attribute> attributes, OperationOptions options) {
@@ -683,13 +1952,13 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 				throw new InvalidAttributeValueException("Missing attribute " + ATTR_USER_ID + " or " + ATTR_USER_FULLNAME);
 			}
 			try {
-				List<GitlabUser> gitlabUsers = gitlabAPI.findUsers(userFullname);
+				List<GitlabUser> gitlabUsers = api().findUsers(userFullname);
 				if (gitlabUsers.isEmpty() || gitlabUsers.size() > 1 ) {
 					throw new InvalidAttributeValueException("Multiple matchs " + ATTR_USER_FULLNAME);
 				}
 				userId = gitlabUsers.get(0).getId();
 			} catch (IOException e) {
-				throw new ConnectorIOException(e.getMessage(), e);
+				throw processIOException(e);
 			}
 		}
 			
@@ -704,10 +1973,11 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		}
 		
 		try {
-			gitlabAPI.addGroupMember(groupId, userId, GitlabAccessLevel.fromAccessValue(accessLevel));
+			api().addGroupMember(groupId, userId, GitlabAccessLevel.fromAccessValue(accessLevel));
+			putMembership(groupId, userId, accessLevel);
 			return new Uid(assembleMemberOfUid(userId, groupId));
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 
@@ -763,13 +2033,13 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 			skip_confirmation = Boolean.TRUE;
 		}
 		try {
-			GitlabUser gitlabUser = gitlabAPI.createUser(email, password, username, fullName, skypeId, linkedIn,
+			GitlabUser gitlabUser = api().createUser(email, password, username, fullName, skypeId, linkedIn,
 					twitter, website_url, projects_limit, extern_uid, extern_provider_name, bio, isAdmin,
 					can_create_group, skip_confirmation);
 			Integer id = gitlabUser.getId();
 			return new Uid(id.toString());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 	
@@ -780,14 +2050,14 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		}
 		
 		try {
-			List<GitlabUser> gitlabUsers = gitlabAPI.findUsers(email);
+			List<GitlabUser> gitlabUsers = api().findUsers(email);
 			if (gitlabUsers.isEmpty() || gitlabUsers.size() > 1)
 				return null;
 			
 			Integer id = gitlabUsers.get(0).getId();
 			return new Uid(id.toString());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 
@@ -803,11 +2073,12 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 			if (parentId != null) {
 				request.setParentId(parentId);
 			}
-			GitlabGroup gitlabGroup = gitlabAPI.createGroup(request, null);
+			GitlabGroup gitlabGroup = api().createGroup(request, null);
 			Integer id = gitlabGroup.getId();
+			getMembershipGraph().putGroup(id, parentId);
 			return new Uid(id.toString());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 
@@ -828,13 +2099,13 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 		String importUrl = getStringAttr(attributes, ATTR_IMPORT_URL);
 
 		try {
-			GitlabProject gitlabProject = gitlabAPI.createProject(name, namespaceId, description, issuesEnabled,
+			GitlabProject gitlabProject = api().createProject(name, namespaceId, description, issuesEnabled,
 					wallEnabled, mergeRequestsEnabled, wikiEnabled, snippetsEnabled, publik, visibilityLevel,
 					importUrl);
 			Integer id = gitlabProject.getId();
 			return new Uid(id.toString());
 		} catch (IOException e) {
-			throw new ConnectorIOException(e.getMessage(), e);
+			throw processIOException(e);
 		}
 	}
 
@@ -880,11 +2151,32 @@ public class GitlabConnector implements Connector, CreateOp, DeleteOp, SchemaOp,
 	@Override
 	public void dispose() {
 		configuration = null;
-		if (gitlabAPI != null) {
+		if (gitlabAPIs != null) {
 			// GitlabAPI seems to not maintain any objects that
 			// need to be explicitly disposed of.
 			// So just let garbage collector do the work
-			gitlabAPI = null;
+			gitlabAPIs = null;
+		}
+		writeToken = null;
+		if (reader != null) {
+			reader.release();
+			reader = null;
+		}
+		if (membershipGraph != null) {
+			membershipGraph.release();
+			membershipGraph = null;
+		}
+		if (mirrors != null) {
+			for (ObjectMirror mirror : mirrors.values()) {
+				mirror.release();
+			}
+			mirrors = null;
+		}
+		if (fingerprintStores != null) {
+			for (FingerprintStore store : fingerprintStores.values()) {
+				store.release();
+			}
+			fingerprintStores = null;
 		}
 	}
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+
+/**
+ * Part of the search filter that GitLab can evaluate, expressed as query
+ * parameters of the collection request.
+ *
+ * The filter may select more objects than the original ICF filter (e.g. when
+ * only a part of it can be translated). This is fine, ICF framework applies
+ * the original filter to the returned objects anyway. Such filter is not
+ * exact, searches that rely on GitLab to select the objects, like paged
+ * searches, evaluate the original filter themselves.
+ */
+final class GitlabFilter {
+
+	static final String PARAM_EXTERN_UID = "extern_uid";
+	static final String PARAM_PROVIDER = "provider";
+
+	private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+	// projects in this namespace are read from the namespace collection
+	private Integer namespaceId;
+	// false if the filter selects more objects than the ICF filter
+	private boolean exact = true;
+	// ICF filter this filter was translated from
+	private Filter original;
+
+	GitlabFilter() {
+	}
+
+	GitlabFilter(String name, String value) {
+		parameters.put(name, value);
+	}
+
+	static GitlabFilter namespace(Integer namespaceId) {
+		GitlabFilter filter = new GitlabFilter();
+		filter.namespaceId = namespaceId;
+		return filter;
+	}
+
+	/**
+	 * Filter that GitLab does not evaluate exactly, e.g. because the bound
+	 * of the range was moved.
+	 */
+	static GitlabFilter inexact(String name, String value) {
+		GitlabFilter filter = new GitlabFilter(name, value);
+		filter.exact = false;
+		return filter;
+	}
+
+	/**
+	 * Conjunction of two filters. If both filters restrict the same
+	 * parameter, one of the restrictions is used. The result then selects
+	 * more objects than the conjunction, which is allowed, but it is not
+	 * exact.
+	 */
+	GitlabFilter and(GitlabFilter other) {
+		GitlabFilter result = new GitlabFilter();
+		result.parameters.putAll(parameters);
+		result.exact = exact && other.exact;
+		for (Map.Entry<String, String> parameter : other.parameters.entrySet()) {
+			String value = result.parameters.get(parameter.getKey());
+			if (value == null) {
+				result.parameters.put(parameter.getKey(), parameter.getValue());
+			} else if (!value.equals(parameter.getValue())) {
+				result.exact = false;
+			}
+		}
+		result.namespaceId = namespaceId != null ? namespaceId : other.namespaceId;
+		if (namespaceId != null && other.namespaceId != null && !namespaceId.equals(other.namespaceId)) {
+			result.exact = false;
+		}
+		return result;
+	}
+
+	/**
+	 * Marks the filter as not exact, used when a part of the ICF filter was
+	 * not translated.
+	 */
+	void markInexact() {
+		exact = false;
+	}
+
+	/**
+	 * True if GitLab selects exactly the objects that match the ICF filter
+	 * this filter was translated from.
+	 */
+	boolean isExact() {
+		if (!exact) {
+			return false;
+		}
+		for (String name : parameters.keySet()) {
+			if (isIncomplete(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the ICF filter this filter was translated from.
+	 */
+	void setOriginal(Filter original) {
+		this.original = original;
+	}
+
+	/**
+	 * True if the object matches the ICF filter this filter was translated
+	 * from. Objects selected by a filter that is not exact may not match it.
+	 */
+	boolean accept(ConnectorObject connectorObject) {
+		return original == null || original.accept(connectorObject);
+	}
+
+	/**
+	 * True if the filter does not restrict the search at all.
+	 */
+	boolean isEmpty() {
+		return parameters.isEmpty() && namespaceId == null;
+	}
+
+	String getParameter(String name) {
+		return parameters.get(name);
+	}
+
+	Integer getNamespaceId() {
+		return namespaceId;
+	}
+
+	/**
+	 * Adds filter parameters to the collection URL.
+	 */
+	String apply(String tailUrl) {
+		StringBuilder query = new StringBuilder();
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			if (isIncomplete(parameter.getKey())) {
+				continue;
+			}
+			if (query.length() > 0) {
+				query.append('&');
+			}
+			query.append(parameter.getKey()).append('=').append(GitlabReader.urlEncode(parameter.getValue()));
+		}
+		if (query.length() == 0) {
+			return tailUrl;
+		}
+		return GitlabReader.withQuery(tailUrl, query.toString());
+	}
+
+	// GitLab searches by external identity only if both uid and provider are given
+	private boolean isIncomplete(String name) {
+		if (PARAM_EXTERN_UID.equals(name)) {
+			return !parameters.containsKey(PARAM_PROVIDER);
+		}
+		if (PARAM_PROVIDER.equals(name)) {
+			return !parameters.containsKey(PARAM_EXTERN_UID);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "GitlabFilter" + parameters + (namespaceId == null ? "" : "[namespace=" + namespaceId + "]")
+				+ (exact ? "" : "[inexact]");
+	}
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.gitlab.api.GitlabAPI;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+/**
+ * Read-only access to the GitLab API. Single object reads and member lists
+ * are cached together with their validators (ETag, Last-Modified) and are
+ * revalidated by conditional requests, unchanged objects are not transferred
+ * nor parsed again.
+ *
+ * Readers are shared by all connector instances with the same configuration,
+ * so the cache survives individual operations. Connections are not closed
+ * after requests, the JDK keeps them alive for reuse. Concurrent identical requests
+ * (e.g. several workers updating the same group) share one HTTP call.
+ *
+ * If read endpoints (e.g. Geo secondaries) are configured, requests are spread
+ * over them, except for a short time after a change made by the connector.
+ * Then the primary is used, so that the change is visible.
+ */
+final class GitlabReader {
+
+	private static final Log LOG = Log.getLog(GitlabReader.class);
+
+	private static final String API_NAMESPACE = "/api/v4";
+	private static final int MEMBERS_PAGE_SIZE = 100;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	// searches running at the same time beyond this limit read their pages synchronously
+	private static final int PREFETCH_THREADS = 16;
+
+	private static final SharedObjects<GitlabReader> READERS = new SharedObjects<GitlabReader>();
+
+	private static final HostnameVerifier TRUST_ALL_HOSTNAMES = new HostnameVerifier() {
+		@Override
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
+	private final String key;
+	private final String hostUrl;
+	private final String[] readHostUrls;
+	private final long readYourWritesWindow;
+	private final AtomicInteger nextReadHost = new AtomicInteger();
+	// System.nanoTime() of the last change
+	private volatile long lastWriteAt;
+	private volatile boolean written = false;
+	private final TokenPool tokenPool;
+	// created once, connections are reused only with the same factory
+	private SSLSocketFactory trustAllSocketFactory;
+	private final boolean ignoreCertificateErrors;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final Map<String, CachedResponse> cache;
+	private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<String, InFlight>();
+	private final ExecutorService prefetchExecutor;
+
+	private GitlabReader(String key, GitlabConfiguration configuration) {
+		this.key = key;
+		this.hostUrl = trimSlash(configuration.getHostUrl());
+		List<String> readHosts = new ArrayList<String>();
+		if (configuration.getReadHostUrls() != null) {
+			for (String readHost : configuration.getReadHostUrls()) {
+				if (readHost != null && !readHost.trim().isEmpty()) {
+					readHosts.add(trimSlash(readHost.trim()));
+				}
+			}
+		}
+		this.readHostUrls = readHosts.toArray(new String[readHosts.size()]);
+		this.readYourWritesWindow = configuration.getReadYourWritesWindow() * 1000000000L;
+		this.tokenPool = new TokenPool(configuration.guardedApiTokens());
+		this.ignoreCertificateErrors = configuration.getIgnoreCertificateErrors();
+		this.connectTimeout = configuration.getConnectTimeout();
+		this.readTimeout = configuration.getReadTimeout();
+		final int cacheSize = configuration.getConditionalCacheSize();
+		this.cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		final AtomicInteger threadCounter = new AtomicInteger();
+		// no queue, a search that gets no thread does not wait for one
+		this.prefetchExecutor = new ThreadPoolExecutor(0, PREFETCH_THREADS, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "gitlab-prefetch-" + threadCounter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	private static String trimSlash(String host) {
+		return host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
+	}
+
+	/**
+	 * Returns reader shared by connector instances with the same
+	 * configuration. The reader must be released when the instance is
+	 * disposed.
+	 */
+	static GitlabReader get(final GitlabConfiguration configuration) {
+		final String key = configuration.sharedStateKey();
+		return READERS.acquire(key, new SharedObjects.Factory<GitlabReader>() {
+			@Override
+			public GitlabReader create() {
+				return new GitlabReader(key, configuration);
+			}
+		});
+	}
+
+	/**
+	 * Drops the reader, its cache and its threads when the last connector
+	 * instance that uses it releases it.
+	 */
+	void release() {
+		if (READERS.release(key)) {
+			prefetchExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Reads single object, revalidating the cached copy if there is one.
+	 * Returns null if the object does not exist.
+	 */
+	<T> T read(String tailUrl, Class<T> type, boolean primary, Deadline deadline) throws IOException {
+		Response response = fetch(tailUrl, true, primary, deadline);
+		return response == null ? null : response.as(type);
+	}
+
+	/**
+	 * Reads all pages of a (member) list, each page is revalidated
+	 * separately. Returns null if the parent object does not exist.
+	 */
+	<T> List<T> readAll(String tailUrl, Class<T[]> type, boolean primary, Deadline deadline) throws IOException {
+		List<T> result = new ArrayList<T>();
+		for (int page = 1;; page++) {
+			Response response = fetch(withQuery(tailUrl, "page=" + page + "&per_page=" + MEMBERS_PAGE_SIZE), true,
+					primary, deadline);
+			if (response == null) {
+				return page == 1 ? null : result;
+			}
+			T[] items = response.as(type);
+			if (items == null) {
+				return result;
+			}
+			result.addAll(Arrays.asList(items));
+			if (items.length < MEMBERS_PAGE_SIZE) {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Performs GET request. Conditional requests are revalidated against
+	 * the cache, search pages change too often to be worth caching.
+	 * Returns null for 404 (Not Found). Primary requests are not sent to the
+	 * read endpoints, that is needed for reads whose result is written back
+	 * (e.g. current members of a group to be changed).
+	 *
+	 * If the same request is already in progress, its result is used instead
+	 * of sending another one. Requests that started before the last write
+	 * are not joined, their result may not contain the change. Such request
+	 * is replaced by a new one, which later requests join instead.
+	 *
+	 * The request in progress is limited by the deadline of the operation
+	 * that sent it. If it times out, the joined operation sends the request
+	 * again within its own deadline, other failures are shared.
+	 */
+	Response fetch(final String tailUrl, final boolean conditional, boolean primary, final Deadline deadline)
+			throws IOException {
+		final String host = primary ? hostUrl : selectHost();
+		String key = (conditional ? "conditional:" : "") + host + tailUrl;
+		FutureTask<Response> task = new FutureTask<Response>(new Callable<Response>() {
+			@Override
+			public Response call() throws IOException {
+				return sendTo(host, tailUrl, conditional, deadline);
+			}
+		});
+		InFlight mine = new InFlight(task, System.nanoTime());
+		while (true) {
+			InFlight running = inFlight.putIfAbsent(key, mine);
+			if (running == null) {
+				break;
+			}
+			if (!running.isBefore(lastWriteAt)) {
+				LOG.ok("Joining request in progress: {0}", tailUrl);
+				try {
+					return getResult(running.task, tailUrl, deadline);
+				} catch (SocketTimeoutException e) {
+					// the request was limited by time budget of another operation
+					LOG.ok("Joined request timed out, repeating it: {0}", tailUrl);
+				} catch (OperationTimeoutException e) {
+					// either this operation or the one that sent the request ran out of time
+					deadline.check("GitLab request " + tailUrl);
+					LOG.ok("Joined request timed out, repeating it: {0}", tailUrl);
+				}
+				return sendTo(host, tailUrl, conditional, deadline);
+			}
+			if (inFlight.replace(key, running, mine)) {
+				break;
+			}
+		}
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, mine);
+		}
+		return getResult(task, tailUrl, deadline);
+	}
+
+	private final class InFlight {
+
+		private final FutureTask<Response> task;
+		// System.nanoTime() when the request was started
+		private final long startedAt;
+
+		private InFlight(FutureTask<Response> task, long startedAt) {
+			this.task = task;
+			this.startedAt = startedAt;
+		}
+
+		/**
+		 * True if the request was started before a write done at given time.
+		 */
+		private boolean isBefore(long writeAt) {
+			return written && startedAt - writeAt <= 0;
+		}
+	}
+
+	private Response getResult(FutureTask<Response> task, String tailUrl, Deadline deadline) throws IOException {
+		try {
+			if (deadline.isUnlimited()) {
+				return task.get();
+			}
+			return task.get(deadline.check("GitLab request " + tailUrl), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ConnectorException(cause.getMessage(), cause);
+		} catch (TimeoutException e) {
+			throw new OperationTimeoutException("Operation time budget exhausted while waiting for GitLab request "
+					+ tailUrl);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for GitLab request " + tailUrl, e);
+		}
+	}
+
+	/**
+	 * Executor of background page reads of all searches that use this reader.
+	 */
+	ExecutorService getPrefetchExecutor() {
+		return prefetchExecutor;
+	}
+
+	/**
+	 * API tokens, shared with the writes done by the connector.
+	 */
+	TokenPool getTokenPool() {
+		return tokenPool;
+	}
+
+	/**
+	 * Records that the connector has just changed something. Reads go to the
+	 * primary for a while, so they see the change. The window is kept per
+	 * reader, i.e. for all objects and all connector instances that share the
+	 * reader, not just for the changed object.
+	 */
+	void markWrite() {
+		lastWriteAt = System.nanoTime();
+		written = true;
+	}
+
+	private String selectHost() {
+		if (readHostUrls.length == 0 || (written && System.nanoTime() - lastWriteAt < readYourWritesWindow)) {
+			return hostUrl;
+		}
+		return readHostUrls[(nextReadHost.getAndIncrement() & Integer.MAX_VALUE) % readHostUrls.length];
+	}
+
+	/**
+	 * Sends the request to given host. Failed requests to a read endpoint are
+	 * repeated on the primary, unless the failure is the client's fault. Not
+	 * Found is repeated too, the object may not be replicated yet.
+	 */
+	private Response sendTo(String host, String tailUrl, boolean conditional, Deadline deadline) throws IOException {
+		if (host.equals(hostUrl)) {
+			return send(hostUrl, tailUrl, conditional, deadline);
+		}
+		try {
+			Response response = send(host, tailUrl, conditional, deadline);
+			if (response != null) {
+				return response;
+			}
+			LOG.ok("Read endpoint {0} does not know {1}, using primary", host, tailUrl);
+		} catch (HttpStatusException e) {
+			if (e.getStatus() < 500) {
+				throw e;
+			}
+			LOG.warn("Read endpoint {0} failed, using primary: {1}", host, e.getMessage());
+		} catch (IOException e) {
+			LOG.warn("Read endpoint {0} failed, using primary: {1}", host, e.getMessage());
+		}
+		return send(hostUrl, tailUrl, conditional, deadline);
+	}
+
+	/**
+	 * Sends the request with the best token. If the token is throttled or
+	 * rejected, the request is repeated with another one.
+	 */
+	private Response send(String host, String tailUrl, boolean conditional, Deadline deadline) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return send(host, tailUrl, conditional, tokenPool.select(), deadline);
+			} catch (HttpStatusException e) {
+				if ((e.getStatus() != HTTP_TOO_MANY_REQUESTS && e.getStatus() != HttpURLConnection.HTTP_UNAUTHORIZED)
+						|| attempt >= tokenPool.size()) {
+					throw e;
+				}
+				LOG.ok("Repeating GitLab request {0} with another token", tailUrl);
+			}
+		}
+	}
+
+	private Response send(String host, String tailUrl, boolean conditional, TokenPool.Token token, Deadline deadline)
+			throws IOException {
+		CachedResponse cached = null;
+		if (conditional) {
+			synchronized (cache) {
+				cached = cache.get(tailUrl);
+			}
+		}
+		HttpURLConnection connection = open(host, tailUrl, token, deadline);
+		try {
+			if (cached != null) {
+				if (cached.etag != null) {
+					connection.setRequestProperty("If-None-Match", cached.etag);
+				}
+				if (cached.lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+				}
+			}
+			int status = connection.getResponseCode();
+			token.update(connection.getHeaderField("RateLimit-Remaining"), connection.getHeaderField("RateLimit-Reset"));
+			if (status == HTTP_TOO_MANY_REQUESTS) {
+				token.throttled(connection.getHeaderField("Retry-After"));
+			} else if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+				token.rejected();
+			}
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				LOG.ok("Not modified: {0}", tailUrl);
+				readBody(connection.getInputStream(), tailUrl, deadline);
+				return cached.response;
+			}
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				// bodies are always consumed, so the connection can be reused
+				readBody(connection.getErrorStream(), tailUrl, deadline);
+				if (conditional) {
+					synchronized (cache) {
+						cache.remove(tailUrl);
+					}
+				}
+				return null;
+			}
+			if (status >= 400) {
+				throw new HttpStatusException(status, "GitLab request " + tailUrl + " failed with status " + status
+						+ ": " + new String(readBody(connection.getErrorStream(), tailUrl, deadline), "UTF-8"));
+			}
+			Response response = new Response(status, connection.getHeaderFields(),
+					readBody(connection.getInputStream(), tailUrl, deadline));
+			if (conditional) {
+				String etag = connection.getHeaderField("ETag");
+				String lastModified = connection.getHeaderField("Last-Modified");
+				if (etag != null || lastModified != null) {
+					synchronized (cache) {
+						cache.put(tailUrl, new CachedResponse(etag, lastModified, response));
+					}
+				}
+			}
+			return response;
+		} catch (HttpStatusException e) {
+			throw e;
+		} catch (IOException e) {
+			// do not return broken connection to the keep-alive cache
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	private HttpURLConnection open(String host, String tailUrl, TokenPool.Token token, Deadline deadline)
+			throws IOException {
+		URL url = new URL(host + API_NAMESPACE + tailUrl);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		if (ignoreCertificateErrors && connection instanceof HttpsURLConnection) {
+			HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+			httpsConnection.setSSLSocketFactory(getTrustAllSocketFactory());
+			httpsConnection.setHostnameVerifier(TRUST_ALL_HOSTNAMES);
+		}
+		connection.setRequestMethod("GET");
+		connection.setRequestProperty("PRIVATE-TOKEN", token.getValue());
+		connection.setRequestProperty("Accept", "application/json");
+		connection.setConnectTimeout(deadline.limitTimeout(connectTimeout, "GitLab request " + tailUrl));
+		connection.setReadTimeout(deadline.limitTimeout(readTimeout, "GitLab request " + tailUrl));
+		connection.setUseCaches(false);
+		return connection;
+	}
+
+	static String withQuery(String tailUrl, String query) {
+		return tailUrl + (tailUrl.indexOf('?') < 0 ? "?" : "&") + query;
+	}
+
+	/**
+	 * Encodes query parameter value or path segment, e.g. group path that is
+	 * used as group ID.
+	 */
+	static String urlEncode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads the whole body. The deadline is checked after every chunk, read
+	 * timeout alone does not stop a slow but steady response.
+	 */
+	private static byte[] readBody(InputStream in, String tailUrl, Deadline deadline) throws IOException {
+		if (in == null) {
+			return new byte[0];
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			String activity = "reading the rest of GitLab response " + tailUrl;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				if (!deadline.isUnlimited()) {
+					deadline.check(activity);
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private synchronized SSLSocketFactory getTrustAllSocketFactory() throws IOException {
+		if (trustAllSocketFactory == null) {
+			trustAllSocketFactory = createTrustAllSocketFactory();
+		}
+		return trustAllSocketFactory;
+	}
+
+	private static SSLSocketFactory createTrustAllSocketFactory() throws IOException {
+		TrustManager trustAll = new X509TrustManager() {
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+			return context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	static final class Response {
+
+		private final int status;
+		private final Map<String, List<String>> headers;
+		private final byte[] body;
+
+		private Response(int status, Map<String, List<String>> headers, byte[] body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		String getHeader(String name) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+					return header.getValue().get(0);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Tail URL of the next page from the Link header, null on the last
+		 * page. Keyset pagination can be continued only this way.
+		 */
+		String getNextPage() {
+			String links = getHeader("Link");
+			if (links == null) {
+				return null;
+			}
+			for (String link : links.split(",")) {
+				int urlEnd = link.indexOf('>');
+				if (link.indexOf('<') < 0 || urlEnd < 0 || !link.substring(urlEnd).contains("rel=\"next\"")) {
+					continue;
+				}
+				String url = link.substring(link.indexOf('<') + 1, urlEnd);
+				int namespaceStart = url.indexOf(API_NAMESPACE + "/");
+				return namespaceStart < 0 ? null : url.substring(namespaceStart + API_NAMESPACE.length());
+			}
+			return null;
+		}
+
+		<T> T as(Class<T> type) throws IOException {
+			if (body.length == 0) {
+				return null;
+			}
+			return GitlabAPI.MAPPER.readValue(body, type);
+		}
+	}
+
+	private static final class CachedResponse {
+
+		private final String etag;
+		private final String lastModified;
+		private final Response response;
+
+		private CachedResponse(String etag, String lastModified, Response response) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.response = response;
+		}
+	}
+
+	static final class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		HttpStatusException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+
+		int getStatus() {
+			return status;
+		}
+	}
+}
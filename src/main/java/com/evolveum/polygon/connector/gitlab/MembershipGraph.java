@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Direct group memberships and the group hierarchy, from which effective
+ * memberships are computed locally. Members of a group are effective members
+ * of all its subgroups, the highest access level wins.
+ *
+ * The graph is shared by connector instances with the same configuration and
+ * is kept up to date by membership changes made by the connector.
+ */
+final class MembershipGraph {
+
+	private static final SharedObjects<MembershipGraph> GRAPHS = new SharedObjects<MembershipGraph>();
+
+	private final String key;
+
+	// groupId -> parentId (null for top-level groups)
+	private Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+	// groupId -> (userId -> access level), ordered by group ID
+	private Map<Integer, Map<Integer, Integer>> directMembers = new TreeMap<Integer, Map<Integer, Integer>>();
+	private Map<Integer, String> userNames = new HashMap<Integer, String>();
+	private final Map<Integer, Map<Integer, Integer>> effectiveMembers = new HashMap<Integer, Map<Integer, Integer>>();
+	// 0 means not built yet
+	private long builtAt;
+
+	private MembershipGraph(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Returns graph shared by connector instances with given key. The graph
+	 * must be released when the instance is disposed.
+	 */
+	static MembershipGraph get(final String key) {
+		return GRAPHS.acquire(key, new SharedObjects.Factory<MembershipGraph>() {
+			@Override
+			public MembershipGraph create() {
+				return new MembershipGraph(key);
+			}
+		});
+	}
+
+	void release() {
+		GRAPHS.release(key);
+	}
+
+	synchronized boolean isBuilt() {
+		return builtAt > 0;
+	}
+
+	synchronized boolean isFresh(long maxAgeMillis) {
+		return builtAt > 0 && System.currentTimeMillis() - builtAt <= maxAgeMillis;
+	}
+
+	/**
+	 * Replaces the graph by data collected in one pass over groups and their
+	 * direct members.
+	 */
+	synchronized void replace(Builder builder) {
+		parents = builder.parents;
+		directMembers = builder.directMembers;
+		userNames = builder.userNames;
+		effectiveMembers.clear();
+		builtAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks the graph as not built, e.g. when a change made by the connector
+	 * could not be recorded. The next search reads it again.
+	 */
+	synchronized void invalidate() {
+		parents = new HashMap<Integer, Integer>();
+		directMembers = new TreeMap<Integer, Map<Integer, Integer>>();
+		userNames = new HashMap<Integer, String>();
+		effectiveMembers.clear();
+		builtAt = 0;
+	}
+
+	synchronized void putGroup(Integer groupId, Integer parentId) {
+		if (!isBuilt()) {
+			return;
+		}
+		parents.put(groupId, parentId);
+		if (!directMembers.containsKey(groupId)) {
+			directMembers.put(groupId, new HashMap<Integer, Integer>());
+		}
+		effectiveMembers.clear();
+	}
+
+	synchronized void putMember(Integer groupId, Integer userId, int accessLevel, String userName) {
+		if (!isBuilt()) {
+			return;
+		}
+		Map<Integer, Integer> members = directMembers.get(groupId);
+		if (members == null) {
+			members = new HashMap<Integer, Integer>();
+			directMembers.put(groupId, members);
+		}
+		members.put(userId, accessLevel);
+		if (userName != null) {
+			userNames.put(userId, userName);
+		}
+		effectiveMembers.clear();
+	}
+
+	synchronized void removeMember(Integer groupId, Integer userId) {
+		if (!isBuilt()) {
+			return;
+		}
+		Map<Integer, Integer> members = directMembers.get(groupId);
+		if (members != null && members.remove(userId) != null) {
+			effectiveMembers.clear();
+		}
+	}
+
+	synchronized void removeUser(Integer userId) {
+		if (!isBuilt()) {
+			return;
+		}
+		for (Map<Integer, Integer> members : directMembers.values()) {
+			members.remove(userId);
+		}
+		userNames.remove(userId);
+		effectiveMembers.clear();
+	}
+
+	synchronized String getUserName(Integer userId) {
+		return userNames.get(userId);
+	}
+
+	/**
+	 * All effective memberships, ordered by group.
+	 */
+	synchronized List<Membership> getMemberships() {
+		List<Membership> memberships = new ArrayList<Membership>();
+		for (Map.Entry<Integer, Map<Integer, Integer>> group : directMembers.entrySet()) {
+			Integer groupId = group.getKey();
+			Map<Integer, Integer> direct = group.getValue();
+			for (Map.Entry<Integer, Integer> member : getEffectiveMembers(groupId, new HashSet<Integer>())
+					.entrySet()) {
+				Integer userId = member.getKey();
+				memberships.add(new Membership(userId, groupId, direct.get(userId), member.getValue(),
+						userNames.get(userId)));
+			}
+		}
+		return memberships;
+	}
+
+	private Map<Integer, Integer> getEffectiveMembers(Integer groupId, Set<Integer> visited) {
+		Map<Integer, Integer> effective = effectiveMembers.get(groupId);
+		if (effective != null) {
+			return effective;
+		}
+		effective = new HashMap<Integer, Integer>();
+		Integer parentId = parents.get(groupId);
+		// visited set protects against inconsistent (cyclic) data
+		if (visited.add(groupId) && parentId != null) {
+			effective.putAll(getEffectiveMembers(parentId, visited));
+		}
+		Map<Integer, Integer> direct = directMembers.get(groupId);
+		if (direct != null) {
+			for (Map.Entry<Integer, Integer> member : direct.entrySet()) {
+				Integer inherited = effective.get(member.getKey());
+				if (inherited == null || inherited < member.getValue()) {
+					effective.put(member.getKey(), member.getValue());
+				}
+			}
+		}
+		effectiveMembers.put(groupId, effective);
+		return effective;
+	}
+
+	static final class Builder {
+
+		private final Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+		private final Map<Integer, Map<Integer, Integer>> directMembers = new TreeMap<Integer, Map<Integer, Integer>>();
+		private final Map<Integer, String> userNames = new HashMap<Integer, String>();
+
+		void addGroup(Integer groupId, Integer parentId) {
+			parents.put(groupId, parentId);
+			if (!directMembers.containsKey(groupId)) {
+				directMembers.put(groupId, new HashMap<Integer, Integer>());
+			}
+		}
+
+		void addMember(Integer groupId, Integer userId, int accessLevel, String userName) {
+			Map<Integer, Integer> members = directMembers.get(groupId);
+			if (members == null) {
+				members = new HashMap<Integer, Integer>();
+				directMembers.put(groupId, members);
+			}
+			members.put(userId, accessLevel);
+			userNames.put(userId, userName);
+		}
+	}
+
+	static final class Membership {
+
+		private final Integer userId;
+		private final Integer groupId;
+		private final Integer accessLevel;
+		private final Integer effectiveAccessLevel;
+		private final String userName;
+
+		Membership(Integer userId, Integer groupId, Integer accessLevel, Integer effectiveAccessLevel,
+				String userName) {
+			this.userId = userId;
+			this.groupId = groupId;
+			this.accessLevel = accessLevel;
+			this.effectiveAccessLevel = effectiveAccessLevel;
+			this.userName = userName;
+		}
+
+		Integer getUserId() {
+			return userId;
+		}
+
+		Integer getGroupId() {
+			return groupId;
+		}
+
+		/**
+		 * Access level of direct membership, null for inherited membership.
+		 */
+		Integer getAccessLevel() {
+			return accessLevel;
+		}
+
+		Integer getEffectiveAccessLevel() {
+			return effectiveAccessLevel;
+		}
+
+		String getUserName() {
+			return userName;
+		}
+
+		boolean isInherited() {
+			return accessLevel == null;
+		}
+	}
+}
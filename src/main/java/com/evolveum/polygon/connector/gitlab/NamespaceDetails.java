@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Namespace returned by GET /namespaces/:id. The namespace model of the
+ * GitLab API library has neither the kind nor the full path.
+ */
+final class NamespaceDetails {
+
+	static final String URL = "/namespaces";
+
+	static final String KIND_USER = "user";
+
+	@JsonProperty("id")
+	private Integer id;
+
+	@JsonProperty("kind")
+	private String kind;
+
+	@JsonProperty("path")
+	private String path;
+
+	@JsonProperty("full_path")
+	private String fullPath;
+
+	Integer getId() {
+		return id;
+	}
+
+	/**
+	 * "user" for personal namespaces, "group" for groups and subgroups.
+	 */
+	String getKind() {
+		return kind;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	String getFullPath() {
+		return fullPath;
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Local persistent copy of one GitLab object class, keyed by uid.
+ *
+ * The mirror is stored as a snapshot written by the last complete search and
+ * a journal of the changes made by this connector since then. Objects are
+ * held in memory in their encoded (compact) form.
+ */
+final class ObjectMirror {
+
+	private static final Log LOG = Log.getLog(ObjectMirror.class);
+
+	// changed with the encoding of objects, older snapshots are populated again
+	private static final int SNAPSHOT_MAGIC = 0x474c4d32;
+	private static final byte JOURNAL_PUT = 1;
+	private static final byte JOURNAL_REMOVE = 2;
+
+	private static final SharedObjects<ObjectMirror> MIRRORS = new SharedObjects<ObjectMirror>();
+
+	private final String key;
+	private final File snapshotFile;
+	private final File journalFile;
+	private Map<String, byte[]> objects;
+	// 0 means that the mirror was never populated or was invalidated
+	private long populatedAt;
+	// searches that populate the mirror right now
+	private final List<Population> populations = new ArrayList<Population>();
+
+	private ObjectMirror(String key, File directory, String name) {
+		this.key = key;
+		this.snapshotFile = new File(directory, name + ".snapshot");
+		this.journalFile = new File(directory, name + ".journal");
+	}
+
+	/**
+	 * Returns mirror of the object class in given directory. Mirrors are shared
+	 * by all connector instances that use the same directory and state key
+	 * (see {@link GitlabConfiguration#stateKey()}). The mirror must be
+	 * released when the instance is disposed, the files are kept.
+	 */
+	static ObjectMirror get(final File directory, String stateKey, String objectClassName) {
+		final String name = "mirror-" + stateKey + "-" + objectClassName;
+		final String key;
+		try {
+			key = directory.getCanonicalPath() + File.separator + name;
+		} catch (IOException e) {
+			throw new ConnectorIOException(e.getMessage(), e);
+		}
+		return MIRRORS.acquire(key, new SharedObjects.Factory<ObjectMirror>() {
+			@Override
+			public ObjectMirror create() {
+				return new ObjectMirror(key, directory, name);
+			}
+		});
+	}
+
+	void release() {
+		MIRRORS.release(key);
+	}
+
+	/**
+	 * True if the mirror was completely populated not earlier than maxAge
+	 * milliseconds ago.
+	 */
+	synchronized boolean isFresh(long maxAgeMillis) {
+		load();
+		return populatedAt > 0 && System.currentTimeMillis() - populatedAt <= maxAgeMillis;
+	}
+
+	/**
+	 * Passes all mirrored objects to the handler, until the handler stops.
+	 */
+	void search(ResultsHandler handler) {
+		List<byte[]> snapshot;
+		synchronized (this) {
+			load();
+			snapshot = new ArrayList<byte[]>(objects.values());
+		}
+		try {
+			for (byte[] data : snapshot) {
+				if (!handler.handle(ConnectorObjectCodec.decode(data))) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			throw new ConnectorIOException("Corrupted mirror " + snapshotFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Starts population of the mirror by a complete search. The returned
+	 * handler records all objects passed to the delegate handler, the
+	 * mirror is replaced by them on {@link Population#commit()}. The
+	 * population must be closed when the search ends.
+	 */
+	synchronized Population populate(ResultsHandler delegate) {
+		Population population = new Population(delegate);
+		populations.add(population);
+		return population;
+	}
+
+	final class Population implements ResultsHandler {
+
+		private final ResultsHandler delegate;
+		private final Map<String, byte[]> newObjects = new LinkedHashMap<String, byte[]>();
+		// changes made while the search runs, null value means removal
+		private final Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+		private boolean stopped = false;
+		private boolean invalidated = false;
+
+		private Population(ResultsHandler delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean handle(ConnectorObject object) {
+			newObjects.put(object.getUid().getUidValue(), ConnectorObjectCodec.encode(object));
+			if (!delegate.handle(object)) {
+				stopped = true;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Replaces the mirror content, unless the search was stopped by the
+		 * handler before all objects were seen or the mirror was invalidated
+		 * meanwhile. Changes made while the search ran are replayed on top of
+		 * its results, the search may have read the objects before them.
+		 */
+		void commit() {
+			synchronized (ObjectMirror.this) {
+				populations.remove(this);
+				if (stopped || invalidated) {
+					return;
+				}
+				for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+					if (change.getValue() == null) {
+						newObjects.remove(change.getKey());
+					} else {
+						newObjects.put(change.getKey(), change.getValue());
+					}
+				}
+				replace(newObjects);
+			}
+		}
+
+		/**
+		 * Ends the population without changing the mirror, if it was not
+		 * committed (e.g. because the search failed).
+		 */
+		void close() {
+			synchronized (ObjectMirror.this) {
+				populations.remove(this);
+			}
+		}
+	}
+
+	private synchronized void replace(Map<String, byte[]> newObjects) {
+		long now = System.currentTimeMillis();
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeLong(now);
+				out.writeInt(newObjects.size());
+				for (byte[] data : newObjects.values()) {
+					out.writeInt(data.length);
+					out.write(data);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(snapshotFile)) {
+				// rename does not replace existing file on some platforms
+				snapshotFile.delete();
+				if (!tmpFile.renameTo(snapshotFile)) {
+					throw new IOException("Cannot rename " + tmpFile + " to " + snapshotFile);
+				}
+			}
+			journalFile.delete();
+		} catch (IOException e) {
+			LOG.warn(e, "Cannot write mirror snapshot {0}", snapshotFile);
+			invalidate();
+			return;
+		}
+		objects = newObjects;
+		populatedAt = now;
+	}
+
+	/**
+	 * Stores current state of one object, e.g. after it was modified.
+	 */
+	synchronized void put(ConnectorObject object) {
+		load();
+		byte[] data = ConnectorObjectCodec.encode(object);
+		for (Population population : populations) {
+			population.changes.put(object.getUid().getUidValue(), data);
+		}
+		if (populatedAt == 0) {
+			// Nothing to keep fresh, next complete search populates the mirror
+			return;
+		}
+		objects.put(object.getUid().getUidValue(), data);
+		appendJournal(JOURNAL_PUT, null, data);
+	}
+
+	synchronized void remove(String uid) {
+		load();
+		for (Population population : populations) {
+			population.changes.put(uid, null);
+		}
+		if (populatedAt == 0) {
+			return;
+		}
+		objects.remove(uid);
+		appendJournal(JOURNAL_REMOVE, uid, null);
+	}
+
+	/**
+	 * Marks the mirror as unusable until the next complete search. Used for
+	 * changes whose effect on the mirrored objects is not known.
+	 */
+	synchronized void invalidate() {
+		for (Population population : populations) {
+			population.invalidated = true;
+		}
+		objects = new LinkedHashMap<String, byte[]>();
+		populatedAt = 0;
+		snapshotFile.delete();
+		journalFile.delete();
+	}
+
+	private void appendJournal(byte operation, String uid, byte[] data) {
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+			try {
+				out.writeByte(operation);
+				if (operation == JOURNAL_PUT) {
+					out.writeInt(data.length);
+					out.write(data);
+				} else {
+					out.writeUTF(uid);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LOG.warn(e, "Cannot append to mirror journal {0}", journalFile);
+			invalidate();
+		}
+	}
+
+	private void load() {
+		if (objects != null) {
+			return;
+		}
+		objects = new LinkedHashMap<String, byte[]>();
+		populatedAt = 0;
+		if (!snapshotFile.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC) {
+					throw new IOException("Not a mirror snapshot");
+				}
+				long snapshotTime = in.readLong();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					objects.put(ConnectorObjectCodec.decode(data).getUid().getUidValue(), data);
+				}
+				populatedAt = snapshotTime;
+			} finally {
+				in.close();
+			}
+			if (journalFile.exists()) {
+				replayJournal();
+			}
+		} catch (IOException e) {
+			LOG.warn(e, "Cannot read mirror {0}, it will be populated again", snapshotFile);
+			invalidate();
+		}
+	}
+
+	private void replayJournal() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			while (true) {
+				int operation;
+				try {
+					operation = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				if (operation == JOURNAL_PUT) {
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					objects.put(ConnectorObjectCodec.decode(data).getUid().getUidValue(), data);
+				} else if (operation == JOURNAL_REMOVE) {
+					objects.remove(in.readUTF());
+				} else {
+					throw new IOException("Unknown journal operation " + operation);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
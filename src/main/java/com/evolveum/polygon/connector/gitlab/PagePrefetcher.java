@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Reads result pages one by one. If prefetch depth is positive, the pages are
+ * requested by a background thread while the previous pages are still being
+ * processed, so network time and handler time overlap. The buffer of fetched
+ * pages is bounded by the prefetch depth, therefore slow handler stops the
+ * prefetching instead of growing memory.
+ *
+ * Background threads come from a bounded executor of the shared reader. If
+ * all of them are busy, the pages are read by the caller instead.
+ */
+final class PagePrefetcher<T> implements Closeable {
+
+	private static final Log LOG = Log.getLog(PagePrefetcher.class);
+
+	interface PageSource<T> {
+		/**
+		 * Fetches page with given number (starting with 1).
+		 */
+		List<T> fetch(int page) throws IOException;
+	}
+
+	private static final Object END = new Object();
+
+	private final PageSource<T> source;
+	private final int pageSize;
+	private final Deadline deadline;
+	private final ExecutorService executor;
+	private BlockingQueue<Object> buffer;
+	private Future<?> producer;
+	private final int firstPage;
+	private int nextPage;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	PagePrefetcher(PageSource<T> source, int pageSize, int firstPage, int prefetchDepth, Deadline deadline,
+			ExecutorService executor) {
+		this.source = source;
+		this.pageSize = pageSize;
+		this.firstPage = firstPage;
+		this.nextPage = firstPage;
+		this.deadline = deadline;
+		this.executor = executor;
+		if (prefetchDepth > 0) {
+			buffer = new ArrayBlockingQueue<Object>(prefetchDepth);
+		} else {
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Returns next page or null if there are no more pages.
+	 */
+	List<T> next() throws IOException {
+		if (finished) {
+			return null;
+		}
+		if (buffer != null && producer == null) {
+			try {
+				producer = executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						produce();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOG.ok("No prefetch thread available, reading pages synchronously");
+				buffer = null;
+			}
+		}
+		if (buffer == null) {
+			List<T> page = source.fetch(nextPage++);
+			if (isLastPage(page)) {
+				finished = true;
+			}
+			return page == null || page.isEmpty() ? null : page;
+		}
+		Object item = take();
+		if (item == END) {
+			finished = true;
+			return null;
+		}
+		if (item instanceof IOException) {
+			finished = true;
+			throw (IOException) item;
+		}
+		if (item instanceof RuntimeException) {
+			finished = true;
+			throw (RuntimeException) item;
+		}
+		if (item instanceof Error) {
+			finished = true;
+			throw (Error) item;
+		}
+		return (List<T>) item;
+	}
+
+	private Object take() {
+		try {
+			if (deadline.isUnlimited()) {
+				return buffer.take();
+			}
+			Object item = null;
+			while (item == null) {
+				// check() throws once the budget is spent
+				item = buffer.poll(deadline.check("waiting for next page"), TimeUnit.MILLISECONDS);
+			}
+			return item;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for next page", e);
+		}
+	}
+
+	private void produce() {
+		int page = firstPage;
+		try {
+			while (!closed) {
+				List<T> items = source.fetch(page++);
+				if (items != null && !items.isEmpty()) {
+					buffer.put(items);
+				}
+				if (isLastPage(items)) {
+					break;
+				}
+			}
+			if (!closed) {
+				buffer.put(END);
+			}
+		} catch (InterruptedException e) {
+			// closed by consumer
+			LOG.ok("Page prefetching interrupted at page {0}", page);
+		} catch (Throwable t) {
+			try {
+				if (!closed) {
+					buffer.put(t);
+				}
+			} catch (InterruptedException e) {
+				LOG.ok("Page prefetching interrupted at page {0}", page);
+			}
+		}
+	}
+
+	private boolean isLastPage(List<T> page) {
+		return page == null || page.size() < pageSize;
+	}
+
+	/**
+	 * Stops prefetching, e.g. when results handler does not want more results.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (producer != null) {
+			producer.cancel(true);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Position of a search ordered by ID that has not finished yet: the last ID
+ * of a completely handled page. Stored in the state directory under a name
+ * given by the caller, so that the caller's search interrupted e.g. by an
+ * I/O error can continue after that ID.
+ */
+final class ScanCheckpoint {
+
+	private static final Log LOG = Log.getLog(ScanCheckpoint.class);
+
+	private static final int FILE_MAGIC = 0x474c4331;
+
+	private final File file;
+
+	/**
+	 * Checkpoint of given name. Names are chosen by the callers, e.g. a task
+	 * identifier, searches with different names never share a checkpoint.
+	 */
+	ScanCheckpoint(File directory, String stateKey, String objectClassName, String name) {
+		this.file = new File(directory, "checkpoint-" + stateKey + "-" + objectClassName + "-"
+				+ GitlabConfiguration.digest(name).substring(0, 16) + ".bin");
+	}
+
+	/**
+	 * Returns the last ID returned by an unfinished search of the same
+	 * collection, null if there is none.
+	 */
+	synchronized Integer load(String tailUrl) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_MAGIC) {
+					throw new IOException("Not a checkpoint file");
+				}
+				String storedTailUrl = in.readUTF();
+				int lastId = in.readInt();
+				return storedTailUrl.equals(tailUrl) ? lastId : null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOG.warn(e, "Cannot read checkpoint {0}, search starts from the beginning", file);
+			return null;
+		}
+	}
+
+	synchronized void save(String tailUrl, int lastId) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeUTF(tailUrl);
+				out.writeInt(lastId);
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				// rename does not replace existing file on some platforms
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Cannot rename " + tmpFile + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			// the search goes on, it just cannot be resumed from here
+			LOG.warn(e, "Cannot write checkpoint {0}", file);
+		}
+	}
+
+	/**
+	 * Forgets the position after the search has finished or was stopped by
+	 * the caller.
+	 */
+	synchronized void clear() {
+		file.delete();
+	}
+}
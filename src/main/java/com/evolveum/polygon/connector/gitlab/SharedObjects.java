@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Objects shared by connector instances (readers, mirrors, ...), keyed by
+ * configuration. Each instance acquires the objects it uses and releases them
+ * when it is disposed. An object is dropped when its last user releases it,
+ * so reconfiguration or token rotation does not leave the old objects behind.
+ */
+final class SharedObjects<T> {
+
+	interface Factory<T> {
+		T create();
+	}
+
+	private final Map<String, T> objects = new HashMap<String, T>();
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+	/**
+	 * Returns the object with given key, creating it if there is none.
+	 * Every call must be paired with {@link #release(String)}.
+	 */
+	synchronized T acquire(String key, Factory<T> factory) {
+		T object = objects.get(key);
+		if (object == null) {
+			object = factory.create();
+			objects.put(key, object);
+			references.put(key, 1);
+		} else {
+			references.put(key, references.get(key) + 1);
+		}
+		return object;
+	}
+
+	/**
+	 * Returns true if this was the last reference and the object was
+	 * dropped. The caller may then free its resources.
+	 */
+	synchronized boolean release(String key) {
+		Integer count = references.get(key);
+		if (count == null) {
+			return false;
+		}
+		if (count > 1) {
+			references.put(key, count - 1);
+			return false;
+		}
+		references.remove(key);
+		objects.remove(key);
+		return true;
+	}
+
+	synchronized int size() {
+		return objects.size();
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+
+/**
+ * Equivalent API tokens that requests are spread over. Each request uses the
+ * token with the largest remaining rate limit budget, as reported by GitLab
+ * in RateLimit-* response headers. Throttled (429) and rejected (401) tokens
+ * are not used for a while.
+ */
+final class TokenPool {
+
+	private static final Log LOG = Log.getLog(TokenPool.class);
+
+	private static final long DEFAULT_THROTTLE_COOLDOWN = 60000L;
+	private static final long REJECTED_COOLDOWN = 600000L;
+
+	private final Token[] tokens;
+	private final AtomicInteger next = new AtomicInteger();
+
+	TokenPool(List<GuardedString> tokenValues) {
+		tokens = new Token[tokenValues.size()];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = new Token(i + 1, tokenValues.get(i));
+		}
+	}
+
+	int size() {
+		return tokens.length;
+	}
+
+	/**
+	 * Selects token for the next request. Tokens with unknown budget come
+	 * first, ties are broken in turn. If all tokens cool down, the one that
+	 * becomes available first is used.
+	 */
+	Token select() {
+		long now = System.currentTimeMillis();
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		Token best = null;
+		long bestBudget = -1;
+		Token firstAvailable = null;
+		for (int i = 0; i < tokens.length; i++) {
+			Token token = tokens[(start + i) % tokens.length];
+			if (token.cooldownUntil > now) {
+				if (firstAvailable == null || token.cooldownUntil < firstAvailable.cooldownUntil) {
+					firstAvailable = token;
+				}
+				continue;
+			}
+			long budget = token.getBudget(now);
+			if (budget > bestBudget) {
+				best = token;
+				bestBudget = budget;
+			}
+		}
+		if (best == null) {
+			best = firstAvailable;
+		}
+		best.requests.incrementAndGet();
+		return best;
+	}
+
+	/**
+	 * Request counts and state of all tokens, for diagnostics.
+	 */
+	String getMetrics() {
+		StringBuilder metrics = new StringBuilder();
+		for (Token token : tokens) {
+			if (metrics.length() > 0) {
+				metrics.append(", ");
+			}
+			metrics.append(token);
+		}
+		return metrics.toString();
+	}
+
+	static final class Token {
+
+		private final int number;
+		private final GuardedString value;
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong throttled = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		// -1 until GitLab reports it
+		private volatile long remaining = -1;
+		private volatile long resetAt;
+		private volatile long cooldownUntil;
+
+		private Token(int number, GuardedString value) {
+			this.number = number;
+			this.value = value;
+		}
+
+		/**
+		 * Number of the token in the pool, starting with 1. Identifies the
+		 * token without revealing it.
+		 */
+		int getNumber() {
+			return number;
+		}
+
+		/**
+		 * Opens the token. Only to be used when a request is built, the value
+		 * must not be kept.
+		 */
+		String getValue() {
+			final StringBuilder opened = new StringBuilder();
+			value.access(new GuardedString.Accessor() {
+				@Override
+				public void access(char[] chars) {
+					opened.append(chars);
+				}
+			});
+			return opened.toString();
+		}
+
+		private long getBudget(long now) {
+			if (remaining < 0 || (resetAt > 0 && now >= resetAt)) {
+				return Long.MAX_VALUE;
+			}
+			return remaining;
+		}
+
+		/**
+		 * Records rate limit state from RateLimit-Remaining and
+		 * RateLimit-Reset (epoch seconds) headers, if present.
+		 */
+		void update(String remainingHeader, String resetHeader) {
+			Long parsedRemaining = parse(remainingHeader);
+			if (parsedRemaining != null) {
+				remaining = parsedRemaining;
+			}
+			Long parsedReset = parse(resetHeader);
+			if (parsedReset != null) {
+				resetAt = parsedReset * 1000L;
+			}
+		}
+
+		/**
+		 * The token exceeded its rate limit (429). It is not used until
+		 * Retry-After (seconds) elapses or the rate limit resets.
+		 */
+		void throttled(String retryAfterHeader) {
+			throttled.incrementAndGet();
+			long now = System.currentTimeMillis();
+			Long retryAfter = parse(retryAfterHeader);
+			long until;
+			if (retryAfter != null) {
+				until = now + retryAfter * 1000L;
+			} else if (resetAt > now) {
+				until = resetAt;
+			} else {
+				until = now + DEFAULT_THROTTLE_COOLDOWN;
+			}
+			cooldownUntil = until;
+			remaining = 0;
+			LOG.ok("Token #{0} throttled, cooling down for {1} ms", number, until - now);
+		}
+
+		/**
+		 * The token was rejected (401), e.g. because it was revoked or has
+		 * expired.
+		 */
+		void rejected() {
+			rejected.incrementAndGet();
+			cooldownUntil = System.currentTimeMillis() + REJECTED_COOLDOWN;
+			LOG.warn("Token #{0} rejected by GitLab, not used for {1} ms", number, REJECTED_COOLDOWN);
+		}
+
+		private static Long parse(String header) {
+			if (header == null) {
+				return null;
+			}
+			try {
+				return Long.valueOf(header.trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "token #" + number + " (requests=" + requests + ", throttled=" + throttled + ", rejected="
+					+ rejected + ", remaining=" + remaining + ")";
+		}
+	}
+}
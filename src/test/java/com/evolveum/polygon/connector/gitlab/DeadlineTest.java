@@ -0,0 +1,56 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class DeadlineTest {
+
+	@Test
+	public void noDeadlineKeepsConfiguredTimeout() {
+		Assert.assertTrue(Deadline.NONE.isUnlimited());
+		Assert.assertTrue(Deadline.after(0) == Deadline.NONE);
+		Assert.assertTrue(Deadline.after(-1) == Deadline.NONE);
+		Assert.assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+		Assert.assertEquals(5000, Deadline.NONE.limitTimeout(5000, "test"));
+		Assert.assertEquals(0, Deadline.NONE.limitTimeout(0, "test"));
+		Assert.assertEquals(Long.MAX_VALUE, Deadline.NONE.check("test"));
+	}
+
+	@Test
+	public void limitTimeoutByRemainingBudget() {
+		Deadline deadline = Deadline.after(60000);
+		Assert.assertFalse(deadline.isUnlimited());
+		Assert.assertEquals(1000, deadline.limitTimeout(1000, "test"));
+
+		// infinite and too long timeouts are cut to the remaining budget
+		int infinite = deadline.limitTimeout(0, "test");
+		Assert.assertTrue(infinite > 0 && infinite <= 60000);
+		int tooLong = deadline.limitTimeout(120000, "test");
+		Assert.assertTrue(tooLong > 0 && tooLong <= 60000);
+
+		long remaining = deadline.check("test");
+		Assert.assertTrue(remaining > 0 && remaining <= 60000);
+	}
+
+	@Test
+	public void failWhenBudgetIsSpent() throws InterruptedException {
+		Deadline deadline = Deadline.after(1);
+		Thread.sleep(20);
+		Assert.assertTrue(deadline.remainingMillis() <= 0);
+
+		try {
+			deadline.check("reading users");
+			Assert.fail("Expired deadline passed the check");
+		} catch (OperationTimeoutException e) {
+			Assert.assertTrue(e.getMessage().contains("reading users"));
+		}
+		try {
+			deadline.limitTimeout(1000, "reading users");
+			Assert.fail("Expired deadline produced a socket timeout");
+		} catch (OperationTimeoutException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * GitLab API served from memory. Replies are registered for tail URLs, with
+ * or without query. Requests with If-None-Match equal to the ETag of the
+ * reply are answered with 304, requests without a reply with 404.
+ */
+final class FakeGitlab implements Closeable {
+
+	private static final String API_NAMESPACE = "/api/v4";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, Reply> replies = new ConcurrentHashMap<String, Reply>();
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> conditionalRequests = Collections.synchronizedList(new ArrayList<String>());
+	private volatile long delayMillis = 0;
+	private volatile long chunkDelayMillis = 0;
+
+	FakeGitlab() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Registers reply for the tail URL. Headers are given as name, value pairs.
+	 */
+	void reply(String tailUrl, int status, String body, String... headers) {
+		replies.put(API_NAMESPACE + tailUrl, new Reply(status, body, headers));
+	}
+
+	/**
+	 * Delays all following replies, e.g. to let requests overlap.
+	 */
+	void delay(long millis) {
+		delayMillis = millis;
+	}
+
+	/**
+	 * Sends following bodies in chunks of 100 bytes with given delay between
+	 * them, so that no single read times out but the whole body is slow.
+	 */
+	void trickle(long millis) {
+		chunkDelayMillis = millis;
+	}
+
+	/**
+	 * Number of requests of the tail URL, with query if it is given.
+	 */
+	int count(String tailUrl) {
+		return count(requests, tailUrl);
+	}
+
+	/**
+	 * Number of requests of the tail URL that came with If-None-Match.
+	 */
+	int countConditional(String tailUrl) {
+		return count(conditionalRequests, tailUrl);
+	}
+
+	private int count(List<String> urls, String tailUrl) {
+		String url = API_NAMESPACE + tailUrl;
+		int count = 0;
+		synchronized (urls) {
+			for (String request : urls) {
+				if (request.equals(url) || (!url.contains("?") && request.startsWith(url + "?"))) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getRawPath();
+		String query = exchange.getRequestURI().getRawQuery();
+		String url = query == null ? path : path + "?" + query;
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		requests.add(url);
+		if (ifNoneMatch != null) {
+			conditionalRequests.add(url);
+		}
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		Reply reply = replies.get(url);
+		if (reply == null) {
+			reply = replies.get(path);
+		}
+		if (reply == null) {
+			reply = new Reply(404, "{\"message\":\"404 Not found\"}");
+		}
+		for (int i = 0; i + 1 < reply.headers.length; i += 2) {
+			exchange.getResponseHeaders().add(reply.headers[i], reply.headers[i + 1]);
+		}
+		String etag = exchange.getResponseHeaders().getFirst("ETag");
+		if (etag != null && etag.equals(ifNoneMatch)) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(reply.status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			long chunkDelay = chunkDelayMillis;
+			if (chunkDelay <= 0) {
+				out.write(body);
+			} else {
+				for (int offset = 0; offset < body.length; offset += 100) {
+					out.write(body, offset, Math.min(100, body.length - offset));
+					out.flush();
+					try {
+						Thread.sleep(chunkDelay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+			out.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static final class Reply {
+
+		private final int status;
+		private final String body;
+		private final String[] headers;
+
+		private Reply(int status, String body, String... headers) {
+			this.status = status;
+			this.body = body;
+			this.headers = headers;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class FingerprintStoreTest {
+
+	@Test
+	public void ignoreOrderOfValues() {
+		Assert.assertEquals(FingerprintStore.fingerprint(TestObjects.group("61", "developers", 36, 37)),
+				FingerprintStore.fingerprint(TestObjects.group("61", "developers", 37, 36)));
+		Assert.assertFalse(FingerprintStore.fingerprint(TestObjects.group("61", "developers", 36))
+				== FingerprintStore.fingerprint(TestObjects.group("61", "developers", 36, 37)));
+	}
+
+	@Test
+	public void reportChangesSincePreviousScan() throws IOException {
+		FingerprintStore store = FingerprintStore.get(TestObjects.createDirectory("gitlab-fingerprints"),
+				"0123456789abcdef", ObjectClass.GROUP_NAME);
+		Assert.assertEquals(0, store.getGeneration());
+
+		FingerprintStore.Comparison first = store.compare();
+		Assert.assertTrue(first.isChanged(TestObjects.group("61", "developers", 36)));
+		Assert.assertTrue(first.isChanged(TestObjects.group("62", "admins", 37)));
+		Assert.assertTrue(first.isChanged(TestObjects.group("63", "testers")));
+		first.commit();
+		Assert.assertEquals(1, store.getGeneration());
+
+		FingerprintStore.Comparison second = store.compare();
+		Assert.assertFalse(second.isChanged(TestObjects.group("61", "developers", 36)));
+		Assert.assertTrue(second.isChanged(TestObjects.group("62", "admins", 37, 38)));
+		Assert.assertTrue(second.isChanged(TestObjects.group("64", "reviewers")));
+		Assert.assertEquals(Arrays.asList("63"), second.getDeletedUids());
+		Assert.assertEquals(2, second.getGeneration());
+	}
+
+	@Test
+	public void keepBaselineUntilTokenIsConfirmed() throws IOException {
+		File directory = TestObjects.createDirectory("gitlab-fingerprints");
+		FingerprintStore store = FingerprintStore.get(directory, "0123456789abcdef", ObjectClass.GROUP_NAME);
+		FingerprintStore.Comparison baseline = store.compare();
+		baseline.isChanged(TestObjects.group("61", "developers", 36));
+		baseline.commit();
+
+		FingerprintStore.Comparison first = store.compare(1);
+		Assert.assertTrue(first.isChanged(TestObjects.group("61", "developers", 36, 37)));
+		first.stage();
+		Assert.assertEquals(1, store.getGeneration());
+
+		// token 2 was not saved, the change is reported again
+		FingerprintStore.Comparison repeated = store.compare(1);
+		Assert.assertTrue(repeated.isChanged(TestObjects.group("61", "developers", 36, 37)));
+		repeated.stage();
+
+		// staged scan survives restart and is confirmed by its token
+		store.release();
+		store = FingerprintStore.get(directory, "0123456789abcdef", ObjectClass.GROUP_NAME);
+		FingerprintStore.Comparison confirmed = store.compare(2);
+		Assert.assertEquals(2, store.getGeneration());
+		Assert.assertFalse(confirmed.isChanged(TestObjects.group("61", "developers", 36, 37)));
+
+		// unknown token, everything is reported and nothing is deleted
+		FingerprintStore.Comparison resync = store.compare(7);
+		Assert.assertTrue(resync.isChanged(TestObjects.group("62", "admins")));
+		Assert.assertTrue(resync.getDeletedUids().isEmpty());
+		store.release();
+	}
+}
@@ -1,5 +1,21 @@
 package com.evolveum.polygon.connector.gitlab;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.testng.annotations.Test;
 
 import junit.framework.Assert;
@@ -30,4 +46,237 @@ public class GitlabConnectorTest {
 		Assert.assertEquals("36|61", dummyGitlabConnector.assembleMemberOfUid(userId, groupId));
 	}
 
+	@Test
+	public void keepOnlyProjectsInScopeInMirror() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		File directory = TestObjects.createDirectory("gitlab-connector");
+		try {
+			GitlabConfiguration configuration = TestObjects.configuration(gitlab);
+			configuration.setStateDirectory(directory.getPath());
+			configuration.setMirrorEnabled(true);
+			configuration.setProjectGroups(new String[] { "dev" });
+			connector.init(configuration);
+			ObjectMirror mirror = ObjectMirror.get(directory, configuration.stateKey(), "Project");
+			ObjectMirror.Population population = mirror.populate(collector(new ArrayList<ConnectorObject>()));
+			population.handle(project("5", "api"));
+			population.handle(project("6", "web"));
+			population.commit();
+
+			// moved out of the configured group
+			gitlab.reply("/projects/5", 200, "{\"id\":5,\"name\":\"api\",\"path\":\"api\","
+					+ "\"path_with_namespace\":\"ops/api\",\"namespace\":{\"id\":3}}");
+			gitlab.reply("/projects/6", 200, "{\"id\":6,\"name\":\"web\",\"path\":\"web\","
+					+ "\"path_with_namespace\":\"dev/web\",\"namespace\":{\"id\":2}}");
+			gitlab.reply("/projects/6/members", 200, "[]");
+			connector.updateMirror(new ObjectClass("Project"), new Uid("5"), false);
+			connector.updateMirror(new ObjectClass("Project"), new Uid("6"), false);
+
+			List<ConnectorObject> result = new ArrayList<ConnectorObject>();
+			mirror.search(collector(result));
+			Assert.assertEquals(1, result.size());
+			Assert.assertEquals("6", result.get(0).getUid().getUidValue());
+			Assert.assertTrue(mirror.isFresh(60000));
+			mirror.release();
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void invalidateMembershipsOfDeletedUser() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		File directory = TestObjects.createDirectory("gitlab-connector");
+		try {
+			GitlabConfiguration configuration = TestObjects.configuration(gitlab);
+			configuration.setStateDirectory(directory.getPath());
+			configuration.setMirrorEnabled(true);
+			connector.init(configuration);
+			List<ObjectMirror> mirrors = new ArrayList<ObjectMirror>();
+			for (String objectClass : new String[] { ObjectClass.ACCOUNT_NAME, ObjectClass.GROUP_NAME, "Project",
+					"MemberOf" }) {
+				ObjectMirror mirror = ObjectMirror.get(directory, configuration.stateKey(), objectClass);
+				mirror.populate(collector(new ArrayList<ConnectorObject>())).commit();
+				Assert.assertTrue(mirror.isFresh(60000));
+				mirrors.add(mirror);
+			}
+
+			connector.updateMirror(ObjectClass.ACCOUNT, new Uid("36"), true);
+
+			Assert.assertTrue(mirrors.get(0).isFresh(60000));
+			for (ObjectMirror mirror : mirrors.subList(1, mirrors.size())) {
+				Assert.assertFalse(mirror.isFresh(60000));
+			}
+			for (ObjectMirror mirror : mirrors) {
+				mirror.release();
+			}
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void pageThroughUsersMatchingName() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		try {
+			connector.init(TestObjects.configuration(gitlab));
+			gitlab.reply("/users", 200, "[" + user(1, "alice") + "," + user(2, "dev-anna") + "," + user(3, "bob") + ","
+					+ user(4, "dev-ben") + "," + user(5, "dev-cid") + "," + user(6, "dev-dan") + "]");
+			// GitLab cannot search by username prefix
+			List<GitlabFilter> queries = connector.createFilterTranslator(ObjectClass.ACCOUNT, null)
+					.translate(new StartsWithFilter(AttributeBuilder.build(Name.NAME, "dev-")));
+			Assert.assertEquals(1, queries.size());
+			Assert.assertFalse(queries.get(0).isExact());
+
+			SearchCollector second = new SearchCollector();
+			connector.executeQuery(ObjectClass.ACCOUNT, queries.get(0), second,
+					new OperationOptionsBuilder().setPageSize(2).setPagedResultsOffset(3).build());
+			Assert.assertEquals(2, second.objects.size());
+			Assert.assertEquals("dev-cid", second.objects.get(0).getName().getNameValue());
+			Assert.assertEquals("dev-dan", second.objects.get(1).getName().getNameValue());
+			Assert.assertEquals(-1, second.result.getRemainingPagedResults());
+
+			SearchCollector last = new SearchCollector();
+			connector.executeQuery(ObjectClass.ACCOUNT, queries.get(0), last,
+					new OperationOptionsBuilder().setPageSize(2).setPagedResultsOffset(5).build());
+			Assert.assertTrue(last.objects.isEmpty());
+			Assert.assertEquals(0, last.result.getRemainingPagedResults());
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void countOnlyWhatGitlabReports() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		try {
+			connector.init(TestObjects.configuration(gitlab));
+			gitlab.reply("/groups", 200, "[{\"id\":61}]", "X-Total", "42", "X-Total-Pages", "42");
+			gitlab.reply("/users", 200, "[" + user(1, "alice") + "]", "X-Total-Pages", "12000");
+
+			SearchCollector groups = new SearchCollector();
+			connector.executeQuery(ObjectClass.GROUP, null, groups,
+					new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_COUNT_ONLY, true).build());
+			Assert.assertTrue(groups.objects.isEmpty());
+			Assert.assertEquals(42, groups.result.getRemainingPagedResults());
+
+			// very large collections have no X-Total
+			SearchCollector users = new SearchCollector();
+			connector.executeQuery(ObjectClass.ACCOUNT, null, users,
+					new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_COUNT_ONLY, true).build());
+			Assert.assertEquals(-1, users.result.getRemainingPagedResults());
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void rejectCheckpointOfSearchWithoutKeyset() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		try {
+			GitlabConfiguration configuration = TestObjects.configuration(gitlab);
+			configuration.setStateDirectory(TestObjects.createDirectory("gitlab-connector").getPath());
+			configuration.setKeysetPagination(true);
+			connector.init(configuration);
+			gitlab.reply("/users", 200, "[" + user(1, "alice") + "]");
+
+			SearchCollector resumable = new SearchCollector();
+			connector.executeQuery(ObjectClass.ACCOUNT, null, resumable,
+					new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_CHECKPOINT, "task-1").build());
+			Assert.assertEquals(1, resumable.objects.size());
+
+			try {
+				connector.executeQuery(ObjectClass.ACCOUNT, null, new SearchCollector(),
+						new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_CHECKPOINT, "task-1")
+								.setPageSize(10).build());
+				Assert.fail("Checkpoint of paged search was accepted");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+			try {
+				connector.executeQuery(ObjectClass.GROUP, null, new SearchCollector(),
+						new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_CHECKPOINT, "task-1").build());
+				Assert.fail("Checkpoint of group search was accepted");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+			Assert.assertEquals(1, gitlab.count("/users"));
+			Assert.assertEquals(0, gitlab.count("/groups"));
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void rejectCheckpointWhenKeysetIsDisabled() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConnector connector = new GitlabConnector();
+		try {
+			GitlabConfiguration configuration = TestObjects.configuration(gitlab);
+			configuration.setStateDirectory(TestObjects.createDirectory("gitlab-connector").getPath());
+			connector.init(configuration);
+
+			try {
+				connector.executeQuery(ObjectClass.ACCOUNT, null, new SearchCollector(),
+						new OperationOptionsBuilder().setOption(GitlabConnector.OPTION_CHECKPOINT, "task-1").build());
+				Assert.fail("Checkpoint of offset paginated search was accepted");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+			Assert.assertEquals(0, gitlab.count("/users"));
+		} finally {
+			connector.dispose();
+			gitlab.close();
+		}
+	}
+
+	private String user(int id, String username) {
+		return "{\"id\":" + id + ",\"username\":\"" + username + "\",\"name\":\"" + username
+				+ "\",\"state\":\"active\"}";
+	}
+
+	private ConnectorObject project(String uid, String name) {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(new ObjectClass("Project"));
+		builder.setUid(uid);
+		builder.setName(name);
+		builder.addAttribute("path", name);
+		return builder.build();
+	}
+
+	private ResultsHandler collector(final List<ConnectorObject> result) {
+		return new ResultsHandler() {
+			@Override
+			public boolean handle(ConnectorObject connectorObject) {
+				result.add(connectorObject);
+				return true;
+			}
+		};
+	}
+
+	private static class SearchCollector implements SearchResultsHandler {
+
+		private final List<ConnectorObject> objects = new ArrayList<ConnectorObject>();
+		private SearchResult result;
+
+		@Override
+		public boolean handle(ConnectorObject connectorObject) {
+			objects.add(connectorObject);
+			return true;
+		}
+
+		@Override
+		public void handleResult(SearchResult result) {
+			this.result = result;
+		}
+	}
 }
@@ -0,0 +1,43 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class GitlabFilterTest {
+
+	@Test
+	public void applyConjunction() {
+		GitlabFilter filter = new GitlabFilter("admins", "true").and(new GitlabFilter("blocked", "true"));
+
+		Assert.assertEquals("/users?admins=true&blocked=true", filter.apply("/users"));
+	}
+
+	@Test
+	public void encodeValues() {
+		GitlabFilter filter = new GitlabFilter(GitlabFilter.PARAM_EXTERN_UID, "uid=jack,ou=people")
+				.and(new GitlabFilter(GitlabFilter.PARAM_PROVIDER, "ldapmain"));
+
+		Assert.assertEquals("/users?order_by=id&extern_uid=uid%3Djack%2Cou%3Dpeople&provider=ldapmain",
+				filter.apply("/users?order_by=id"));
+	}
+
+	@Test
+	public void skipExternUidWithoutProvider() {
+		GitlabFilter filter = new GitlabFilter(GitlabFilter.PARAM_EXTERN_UID, "jack");
+
+		Assert.assertEquals("/users", filter.apply("/users"));
+		Assert.assertFalse(filter.isExact());
+	}
+
+	@Test
+	public void conflictingParametersAreNotExact() {
+		GitlabFilter same = new GitlabFilter("admins", "true").and(new GitlabFilter("admins", "true"));
+		GitlabFilter conflicting = new GitlabFilter("blocked", "true").and(new GitlabFilter("blocked", "false"));
+
+		Assert.assertTrue(same.isExact());
+		Assert.assertFalse(conflicting.isExact());
+		Assert.assertFalse(new GitlabFilter("admins", "true").and(GitlabFilter.inexact("created_after", "x"))
+				.isExact());
+	}
+}
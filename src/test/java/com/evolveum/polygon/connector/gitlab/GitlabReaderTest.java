@@ -0,0 +1,320 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class GitlabReaderTest {
+
+	@Test
+	public void serveCachedBodyWhenNotModified() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		try {
+			gitlab.reply("/namespaces/3", 200, "{\"id\":3,\"kind\":\"group\",\"full_path\":\"dev\"}", "ETag", "\"v1\"");
+
+			GitlabReader.Response first = reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			GitlabReader.Response second = reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+
+			Assert.assertEquals(2, gitlab.count("/namespaces/3"));
+			Assert.assertEquals(1, gitlab.countConditional("/namespaces/3"));
+			Assert.assertTrue(first == second);
+			Assert.assertEquals("dev", second.as(NamespaceDetails.class).getFullPath());
+
+			// search pages are not revalidated
+			reader.fetch("/namespaces/3", false, false, Deadline.NONE);
+			Assert.assertEquals(1, gitlab.countConditional("/namespaces/3"));
+		} finally {
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void evictLeastRecentlyUsedResponses() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabConfiguration configuration = TestObjects.configuration(gitlab);
+		configuration.setConditionalCacheSize(2);
+		GitlabReader reader = GitlabReader.get(configuration);
+		try {
+			for (int id = 1; id <= 3; id++) {
+				gitlab.reply("/namespaces/" + id, 200, "{\"id\":" + id + "}", "ETag", "\"v" + id + "\"");
+			}
+
+			reader.fetch("/namespaces/1", true, false, Deadline.NONE);
+			reader.fetch("/namespaces/2", true, false, Deadline.NONE);
+			// 1 is used more recently than 2 now
+			reader.fetch("/namespaces/1", true, false, Deadline.NONE);
+			reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			Assert.assertEquals(1, gitlab.countConditional("/namespaces/1"));
+
+			reader.fetch("/namespaces/1", true, false, Deadline.NONE);
+			reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			reader.fetch("/namespaces/2", true, false, Deadline.NONE);
+			Assert.assertEquals(2, gitlab.countConditional("/namespaces/1"));
+			Assert.assertEquals(1, gitlab.countConditional("/namespaces/3"));
+			Assert.assertEquals(0, gitlab.countConditional("/namespaces/2"));
+		} finally {
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void forgetResponseOfDeletedObject() throws IOException {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		try {
+			gitlab.reply("/namespaces/3", 200, "{\"id\":3}", "ETag", "\"v1\"");
+			reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			gitlab.reply("/namespaces/3", 404, "{\"message\":\"404 Namespace Not Found\"}");
+
+			Assert.assertNull(reader.fetch("/namespaces/3", true, false, Deadline.NONE));
+			gitlab.reply("/namespaces/3", 200, "{\"id\":3}", "ETag", "\"v1\"");
+			Assert.assertNotNull(reader.fetch("/namespaces/3", true, false, Deadline.NONE));
+			Assert.assertEquals(1, gitlab.countConditional("/namespaces/3"));
+		} finally {
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void joinRequestInProgress() throws Exception {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			gitlab.reply("/namespaces/3", 200, "{\"id\":3}");
+			gitlab.delay(300);
+
+			Future<GitlabReader.Response> first = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+			Thread.sleep(100);
+			Future<GitlabReader.Response> second = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+
+			Assert.assertTrue(first.get() == second.get());
+			Assert.assertEquals(1, gitlab.count("/namespaces/3"));
+		} finally {
+			executor.shutdownNow();
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void shareFailureOfJoinedRequest() throws Exception {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			gitlab.reply("/namespaces/3", 500, "{\"message\":\"500 Internal Server Error\"}");
+			gitlab.delay(300);
+
+			Future<GitlabReader.Response> first = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+			Thread.sleep(100);
+			Future<GitlabReader.Response> second = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+
+			for (Future<GitlabReader.Response> result : new Future[] { first, second }) {
+				try {
+					result.get();
+					Assert.fail("Failure of the request was not reported");
+				} catch (ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof IOException);
+					Assert.assertTrue(e.getCause().getMessage().contains("500"));
+				}
+			}
+			Assert.assertEquals(1, gitlab.count("/namespaces/3"));
+		} finally {
+			executor.shutdownNow();
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void repeatJoinedRequestAfterSocketTimeout() throws Exception {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			gitlab.reply("/namespaces/3", 200, "{\"id\":3}");
+			gitlab.delay(600);
+
+			Future<GitlabReader.Response> first = executor.submit(fetch(reader, "/namespaces/3",
+					Deadline.after(200)));
+			Thread.sleep(50);
+			Future<GitlabReader.Response> second = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+
+			try {
+				first.get();
+				Assert.fail("Request did not time out");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException
+						|| e.getCause() instanceof OperationTimeoutException);
+			}
+			// time budget of the first operation does not apply to the second one
+			Assert.assertEquals(Integer.valueOf(3), second.get().as(NamespaceDetails.class).getId());
+			Assert.assertEquals(2, gitlab.count("/namespaces/3"));
+		} finally {
+			executor.shutdownNow();
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void repeatJoinedRequestOfOperationOutOfTime() throws Exception {
+		FakeGitlab gitlab = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(TestObjects.configuration(gitlab));
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			StringBuilder body = new StringBuilder("{\"id\":3}");
+			while (body.length() < 1000) {
+				body.append(' ');
+			}
+			gitlab.reply("/namespaces/3", 200, body.toString());
+			// every chunk comes in time, the whole body does not
+			gitlab.trickle(60);
+
+			Future<GitlabReader.Response> first = executor.submit(fetch(reader, "/namespaces/3",
+					Deadline.after(200)));
+			Thread.sleep(50);
+			Future<GitlabReader.Response> second = executor.submit(fetch(reader, "/namespaces/3", Deadline.NONE));
+
+			try {
+				first.get();
+				Assert.fail("Request did not time out");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof OperationTimeoutException);
+			}
+			Assert.assertEquals(Integer.valueOf(3), second.get().as(NamespaceDetails.class).getId());
+			Assert.assertEquals(2, gitlab.count("/namespaces/3"));
+		} finally {
+			executor.shutdownNow();
+			reader.release();
+			gitlab.close();
+		}
+	}
+
+	@Test
+	public void routeReadsToReadEndpoint() throws IOException {
+		FakeGitlab primary = new FakeGitlab();
+		FakeGitlab replica = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(configuration(primary, replica));
+		try {
+			primary.reply("/namespaces/3", 200, "{\"id\":3}");
+			replica.reply("/namespaces/3", 200, "{\"id\":3}");
+
+			reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			Assert.assertEquals(1, replica.count("/namespaces/3"));
+			Assert.assertEquals(0, primary.count("/namespaces/3"));
+
+			// reads whose result is written back
+			reader.fetch("/namespaces/3", true, true, Deadline.NONE);
+			Assert.assertEquals(1, replica.count("/namespaces/3"));
+			Assert.assertEquals(1, primary.count("/namespaces/3"));
+		} finally {
+			reader.release();
+			primary.close();
+			replica.close();
+		}
+	}
+
+	@Test
+	public void readPrimaryAfterWrite() throws IOException {
+		FakeGitlab primary = new FakeGitlab();
+		FakeGitlab replica = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(configuration(primary, replica));
+		try {
+			primary.reply("/namespaces/3", 200, "{\"id\":3}");
+			replica.reply("/namespaces/3", 200, "{\"id\":3}");
+
+			reader.markWrite();
+			reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			reader.fetch("/namespaces/3", false, false, Deadline.NONE);
+			Assert.assertEquals(0, replica.count("/namespaces/3"));
+			Assert.assertEquals(2, primary.count("/namespaces/3"));
+		} finally {
+			reader.release();
+			primary.close();
+			replica.close();
+		}
+	}
+
+	@Test
+	public void repeatNotFoundOnPrimary() throws IOException {
+		FakeGitlab primary = new FakeGitlab();
+		FakeGitlab replica = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(configuration(primary, replica));
+		try {
+			// created just now, not replicated yet
+			primary.reply("/namespaces/3", 200, "{\"id\":3}");
+
+			GitlabReader.Response response = reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			Assert.assertEquals(Integer.valueOf(3), response.as(NamespaceDetails.class).getId());
+			Assert.assertEquals(1, replica.count("/namespaces/3"));
+			Assert.assertEquals(1, primary.count("/namespaces/3"));
+
+			Assert.assertNull(reader.fetch("/namespaces/4", true, false, Deadline.NONE));
+			Assert.assertEquals(1, primary.count("/namespaces/4"));
+		} finally {
+			reader.release();
+			primary.close();
+			replica.close();
+		}
+	}
+
+	@Test
+	public void fallBackToPrimaryOnServerError() throws IOException {
+		FakeGitlab primary = new FakeGitlab();
+		FakeGitlab replica = new FakeGitlab();
+		GitlabReader reader = GitlabReader.get(configuration(primary, replica));
+		try {
+			primary.reply("/namespaces/3", 200, "{\"id\":3}");
+			replica.reply("/namespaces/3", 502, "{\"message\":\"502 Bad Gateway\"}");
+			primary.reply("/namespaces/4", 200, "{\"id\":4}");
+			replica.reply("/namespaces/4", 403, "{\"message\":\"403 Forbidden\"}");
+
+			GitlabReader.Response response = reader.fetch("/namespaces/3", true, false, Deadline.NONE);
+			Assert.assertEquals(Integer.valueOf(3), response.as(NamespaceDetails.class).getId());
+			Assert.assertEquals(1, primary.count("/namespaces/3"));
+
+			// client errors are not repeated
+			try {
+				reader.fetch("/namespaces/4", true, false, Deadline.NONE);
+				Assert.fail("Client error of read endpoint was not reported");
+			} catch (GitlabReader.HttpStatusException e) {
+				Assert.assertEquals(403, e.getStatus());
+			}
+			Assert.assertEquals(0, primary.count("/namespaces/4"));
+		} finally {
+			reader.release();
+			primary.close();
+			replica.close();
+		}
+	}
+
+	private GitlabConfiguration configuration(FakeGitlab primary, FakeGitlab replica) {
+		GitlabConfiguration configuration = TestObjects.configuration(primary);
+		configuration.setReadHostUrls(new String[] { replica.getUrl() });
+		return configuration;
+	}
+
+	private Callable<GitlabReader.Response> fetch(final GitlabReader reader, final String tailUrl,
+			final Deadline deadline) {
+		return new Callable<GitlabReader.Response>() {
+			@Override
+			public GitlabReader.Response call() throws IOException {
+				return reader.fetch(tailUrl, true, false, deadline);
+			}
+		};
+	}
+}
@@ -0,0 +1,80 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class MembershipGraphTest {
+
+	@Test
+	public void inheritMembershipsFromParentGroups() {
+		MembershipGraph graph = build();
+
+		Map<String, MembershipGraph.Membership> memberships = index(graph.getMemberships());
+
+		Assert.assertEquals(4, memberships.size());
+		// jack is direct developer of the subgroup, maintainer inherited from the top group wins
+		MembershipGraph.Membership jack = memberships.get("36|2");
+		Assert.assertFalse(jack.isInherited());
+		Assert.assertEquals(Integer.valueOf(30), jack.getAccessLevel());
+		Assert.assertEquals(Integer.valueOf(40), jack.getEffectiveAccessLevel());
+		MembershipGraph.Membership inherited = memberships.get("36|3");
+		Assert.assertTrue(inherited.isInherited());
+		Assert.assertNull(inherited.getAccessLevel());
+		Assert.assertEquals(Integer.valueOf(40), inherited.getEffectiveAccessLevel());
+		Assert.assertEquals("jack", inherited.getUserName());
+		Assert.assertEquals(Integer.valueOf(50), memberships.get("37|3").getEffectiveAccessLevel());
+	}
+
+	@Test
+	public void updateIncrementally() {
+		MembershipGraph graph = build();
+
+		graph.removeMember(1, 36);
+		graph.putMember(3, 38, 10, "will");
+		graph.putGroup(4, 3);
+
+		Map<String, MembershipGraph.Membership> memberships = index(graph.getMemberships());
+		Assert.assertNull(memberships.get("36|1"));
+		Assert.assertEquals(Integer.valueOf(30), memberships.get("36|3").getEffectiveAccessLevel());
+		Assert.assertTrue(memberships.get("38|4").isInherited());
+		Assert.assertEquals(Integer.valueOf(50), memberships.get("37|4").getEffectiveAccessLevel());
+	}
+
+	@Test
+	public void ignoreChangesAfterInvalidation() {
+		MembershipGraph graph = build();
+
+		graph.invalidate();
+		graph.putMember(3, 38, 10, "will");
+
+		Assert.assertFalse(graph.isBuilt());
+		Assert.assertTrue(graph.getMemberships().isEmpty());
+	}
+
+	private MembershipGraph build() {
+		// 1 <- 2 <- 3
+		MembershipGraph.Builder builder = new MembershipGraph.Builder();
+		builder.addGroup(1, null);
+		builder.addGroup(2, 1);
+		builder.addGroup(3, 2);
+		builder.addMember(1, 36, 40, "jack");
+		builder.addMember(2, 36, 30, "jack");
+		builder.addMember(3, 37, 50, "elaine");
+		MembershipGraph graph = MembershipGraph.get("test|" + System.nanoTime());
+		graph.replace(builder);
+		return graph;
+	}
+
+	private Map<String, MembershipGraph.Membership> index(List<MembershipGraph.Membership> memberships) {
+		Map<String, MembershipGraph.Membership> result = new HashMap<String, MembershipGraph.Membership>();
+		for (MembershipGraph.Membership membership : memberships) {
+			result.put(membership.getUserId() + "|" + membership.getGroupId(), membership);
+		}
+		return result;
+	}
+}
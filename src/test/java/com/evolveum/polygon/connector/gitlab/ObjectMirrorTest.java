@@ -0,0 +1,94 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class ObjectMirrorTest {
+
+	@Test
+	public void encodeAndDecodeObject() throws IOException {
+		ConnectorObject object = TestObjects.group("61", "developers", 36, 37);
+
+		ConnectorObject decoded = ConnectorObjectCodec.decode(ConnectorObjectCodec.encode(object));
+
+		Assert.assertEquals(object, decoded);
+	}
+
+	@Test
+	public void encodeValuesLongerThan64KB() throws IOException {
+		StringBuilder description = new StringBuilder();
+		while (description.length() < 100000) {
+			description.append("P\u0159\u00edli\u0161 \u017elu\u0165ou\u010dk\u00fd k\u016f\u0148. ");
+		}
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(new ObjectClass("Project"));
+		builder.setUid("3");
+		builder.setName("diaspora");
+		builder.addAttribute("description", description.toString());
+		ConnectorObject object = builder.build();
+
+		ConnectorObject decoded = ConnectorObjectCodec.decode(ConnectorObjectCodec.encode(object));
+
+		Assert.assertEquals(object, decoded);
+	}
+
+	@Test
+	public void populateAndReloadMirror() throws IOException {
+		File directory = TestObjects.createDirectory("gitlab-mirror");
+
+		ObjectMirror mirror = ObjectMirror.get(directory, "0123456789abcdef", ObjectClass.GROUP_NAME);
+		Assert.assertFalse(mirror.isFresh(60000));
+		ObjectMirror.Population population = mirror.populate(collector(new ArrayList<ConnectorObject>()));
+		population.handle(TestObjects.group("61", "developers", 36));
+		population.handle(TestObjects.group("62", "admins", 37));
+		population.commit();
+		mirror.put(TestObjects.group("61", "developers", 36, 38));
+		mirror.remove("62");
+
+		Assert.assertTrue(mirror.isFresh(60000));
+		List<ConnectorObject> result = new ArrayList<ConnectorObject>();
+		mirror.search(collector(result));
+		Assert.assertEquals(1, result.size());
+		Assert.assertEquals(TestObjects.group("61", "developers", 36, 38), result.get(0));
+	}
+
+	@Test
+	public void keepChangesMadeDuringPopulation() throws IOException {
+		ObjectMirror mirror = ObjectMirror.get(TestObjects.createDirectory("gitlab-mirror"), "0123456789abcdef",
+				ObjectClass.GROUP_NAME);
+		ObjectMirror.Population population = mirror.populate(collector(new ArrayList<ConnectorObject>()));
+		population.handle(TestObjects.group("61", "developers", 36));
+		population.handle(TestObjects.group("62", "admins", 37));
+		// changed by another operation after the search has read them
+		mirror.put(TestObjects.group("61", "developers", 36, 38));
+		mirror.remove("62");
+		population.handle(TestObjects.group("63", "testers"));
+		population.commit();
+
+		List<ConnectorObject> result = new ArrayList<ConnectorObject>();
+		mirror.search(collector(result));
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals(TestObjects.group("61", "developers", 36, 38), result.get(0));
+		Assert.assertEquals(TestObjects.group("63", "testers"), result.get(1));
+	}
+
+	private ResultsHandler collector(final List<ConnectorObject> result) {
+		return new ResultsHandler() {
+			@Override
+			public boolean handle(ConnectorObject connectorObject) {
+				result.add(connectorObject);
+				return true;
+			}
+		};
+	}
+}
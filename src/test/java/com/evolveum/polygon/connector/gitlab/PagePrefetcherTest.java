@@ -0,0 +1,153 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class PagePrefetcherTest {
+
+	private static final int PAGE_SIZE = 2;
+
+	@Test
+	public void returnPagesInOrder() throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(new CountingSource(5, -1), PAGE_SIZE, 1, 2,
+					Deadline.NONE, executor);
+			Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), readAll(pages));
+			Assert.assertNull(pages.next());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void startAtGivenPage() throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(new CountingSource(5, -1), PAGE_SIZE, 2, 2,
+					Deadline.NONE, executor);
+			Assert.assertEquals(Arrays.asList(3, 4, 5), readAll(pages));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void readSynchronouslyWithoutPrefetchThread() throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		executor.shutdown();
+		CountingSource source = new CountingSource(5, -1);
+		PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(source, PAGE_SIZE, 1, 2, Deadline.NONE,
+				executor);
+		Assert.assertEquals(Arrays.asList(1, 2), pages.next());
+		// nothing is read ahead by the caller
+		Assert.assertEquals(1, source.fetched.get());
+		Assert.assertEquals(Arrays.asList(3, 4, 5), readAll(pages));
+	}
+
+	@Test
+	public void boundReadAheadByPrefetchDepth() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			CountingSource source = new CountingSource(Integer.MAX_VALUE, -1);
+			PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(source, PAGE_SIZE, 1, 2, Deadline.NONE,
+					executor);
+			Assert.assertEquals(Arrays.asList(1, 2), pages.next());
+			Thread.sleep(300);
+			// one page taken, two buffered, one waiting for free space
+			Assert.assertEquals(4, source.fetched.get());
+
+			Assert.assertEquals(Arrays.asList(3, 4), pages.next());
+			Thread.sleep(300);
+			Assert.assertEquals(5, source.fetched.get());
+			pages.close();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void stopFetchingWhenClosed() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			CountingSource source = new CountingSource(Integer.MAX_VALUE, -1);
+			PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(source, PAGE_SIZE, 1, 1, Deadline.NONE,
+					executor);
+			Assert.assertEquals(Arrays.asList(1, 2), pages.next());
+			pages.close();
+			Thread.sleep(300);
+			int fetched = source.fetched.get();
+			Thread.sleep(300);
+			Assert.assertEquals(fetched, source.fetched.get());
+			Assert.assertTrue(fetched <= 3);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void propagateSourceFailure() throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			PagePrefetcher<Integer> pages = new PagePrefetcher<Integer>(new CountingSource(10, 3), PAGE_SIZE, 1, 2,
+					Deadline.NONE, executor);
+			Assert.assertEquals(Arrays.asList(1, 2), pages.next());
+			Assert.assertEquals(Arrays.asList(3, 4), pages.next());
+			try {
+				pages.next();
+				Assert.fail("Failure of page 3 was not reported");
+			} catch (IOException e) {
+				Assert.assertEquals("page 3", e.getMessage());
+			}
+			Assert.assertNull(pages.next());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static List<Integer> readAll(PagePrefetcher<Integer> pages) throws IOException {
+		List<Integer> items = new ArrayList<Integer>();
+		List<Integer> page;
+		while ((page = pages.next()) != null) {
+			items.addAll(page);
+		}
+		return items;
+	}
+
+	/**
+	 * Pages of consecutive numbers 1..count, fails on the given page.
+	 */
+	private static class CountingSource implements PagePrefetcher.PageSource<Integer> {
+
+		private final int count;
+		private final int failingPage;
+		private final AtomicInteger fetched = new AtomicInteger();
+
+		CountingSource(int count, int failingPage) {
+			this.count = count;
+			this.failingPage = failingPage;
+		}
+
+		@Override
+		public List<Integer> fetch(int page) throws IOException {
+			fetched.incrementAndGet();
+			if (page == failingPage) {
+				throw new IOException("page " + page);
+			}
+			List<Integer> items = new ArrayList<Integer>();
+			for (long i = (long) (page - 1) * PAGE_SIZE + 1; i <= Math.min((long) page * PAGE_SIZE, count); i++) {
+				items.add((int) i);
+			}
+			return items;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class ScanCheckpointTest {
+
+	@Test
+	public void resumeSameCollectionOnly() throws IOException {
+		File directory = TestObjects.createDirectory("gitlab-checkpoint");
+		ScanCheckpoint checkpoint = new ScanCheckpoint(directory, "0123456789abcdef", ObjectClass.ACCOUNT_NAME,
+				"task-1");
+		Assert.assertNull(checkpoint.load("/users"));
+
+		checkpoint.save("/users", 36);
+		checkpoint.save("/users", 61);
+
+		Assert.assertEquals(Integer.valueOf(61),
+				new ScanCheckpoint(directory, "0123456789abcdef", ObjectClass.ACCOUNT_NAME, "task-1").load("/users"));
+		Assert.assertNull(checkpoint.load("/users?blocked=true"));
+		// other callers do not resume the search
+		Assert.assertNull(
+				new ScanCheckpoint(directory, "0123456789abcdef", ObjectClass.ACCOUNT_NAME, "task-2").load("/users"));
+		checkpoint.clear();
+		Assert.assertNull(checkpoint.load("/users"));
+	}
+}
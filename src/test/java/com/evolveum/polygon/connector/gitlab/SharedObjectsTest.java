@@ -0,0 +1,29 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class SharedObjectsTest {
+
+	@Test
+	public void dropObjectWhenLastUserReleasesIt() {
+		SharedObjects<Object> shared = new SharedObjects<Object>();
+		SharedObjects.Factory<Object> factory = new SharedObjects.Factory<Object>() {
+			@Override
+			public Object create() {
+				return new Object();
+			}
+		};
+
+		Object first = shared.acquire("a", factory);
+		Assert.assertTrue(first == shared.acquire("a", factory));
+		Assert.assertFalse(first == shared.acquire("b", factory));
+		Assert.assertFalse(shared.release("a"));
+		Assert.assertEquals(2, shared.size());
+		Assert.assertTrue(shared.release("a"));
+		Assert.assertEquals(1, shared.size());
+
+		Assert.assertFalse(first == shared.acquire("a", factory));
+	}
+}
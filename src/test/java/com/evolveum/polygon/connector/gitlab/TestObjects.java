@@ -0,0 +1,50 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+
+/**
+ * Fixtures shared by the tests of the connector state.
+ */
+final class TestObjects {
+
+	private TestObjects() {
+	}
+
+	static ConnectorObject group(String uid, String name, Integer... members) {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(ObjectClass.GROUP);
+		builder.setUid(uid);
+		builder.setName(name);
+		builder.addAttribute("path", name);
+		builder.addAttribute("member", (Object[]) members);
+		return builder.build();
+	}
+
+	/**
+	 * Configuration of connector to a fake GitLab, without any optional
+	 * feature enabled.
+	 */
+	static GitlabConfiguration configuration(FakeGitlab gitlab) {
+		GitlabConfiguration configuration = new GitlabConfiguration();
+		configuration.setHostUrl(gitlab.getUrl());
+		configuration.setApiToken("secret");
+		configuration.setReadTimeout(5000);
+		return configuration;
+	}
+
+	/**
+	 * Creates empty state directory that is deleted when the tests end.
+	 */
+	static File createDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+		return directory;
+	}
+}
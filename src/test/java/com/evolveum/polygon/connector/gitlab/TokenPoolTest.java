@@ -0,0 +1,51 @@
+package com.evolveum.polygon.connector.gitlab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.testng.annotations.Test;
+
+import junit.framework.Assert;
+
+public class TokenPoolTest {
+
+	@Test
+	public void preferLargestRemainingBudget() {
+		TokenPool pool = new TokenPool(tokens("a", "b", "c"));
+		String reset = String.valueOf(System.currentTimeMillis() / 1000 + 60);
+		for (int i = 0; i < 3; i++) {
+			TokenPool.Token token = pool.select();
+			token.update("a".equals(token.getValue()) ? "10" : "b".equals(token.getValue()) ? "500" : "20", reset);
+		}
+
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals("b", pool.select().getValue());
+		}
+	}
+
+	@Test
+	public void skipThrottledAndRejectedTokens() {
+		TokenPool pool = new TokenPool(tokens("a", "b", "c"));
+		TokenPool.Token first = pool.select();
+		first.throttled("30");
+		TokenPool.Token second = pool.select();
+		Assert.assertFalse(first == second);
+		second.rejected();
+
+		TokenPool.Token third = pool.select();
+		Assert.assertFalse(first == third);
+		Assert.assertFalse(second == third);
+		third.throttled("10");
+		// all tokens cool down, the one available first is used
+		Assert.assertTrue(third == pool.select());
+	}
+
+	private List<GuardedString> tokens(String... values) {
+		List<GuardedString> tokens = new ArrayList<GuardedString>();
+		for (String value : values) {
+			tokens.add(new GuardedString(value.toCharArray()));
+		}
+		return tokens;
+	}
+}